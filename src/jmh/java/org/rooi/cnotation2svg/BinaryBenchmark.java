@@ -0,0 +1,91 @@
+package org.rooi.cnotation2svg;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.rooi.cnotation2svg.CNotation2SVG.BinaryScore;
+import org.rooi.cnotation2svg.CNotation2SVG.FlatParser;
+import org.rooi.cnotation2svg.CNotation2SVG.FlatScore;
+import org.rooi.cnotation2svg.CNotation2SVG.Generator;
+import org.rooi.cnotation2svg.CNotation2SVG.ParseException;
+import org.rooi.cnotation2svg.CNotation2SVG.Parser;
+import org.rooi.cnotation2svg.CNotation2SVG.Score;
+
+// Loading a score from a .cn text file against a .cnb binary file,
+// into the Score tree and into a FlatScore. With the gc profiler
+// gc.alloc.rate.norm is the bytes allocated per load.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BinaryBenchmark
+{
+   @Param({ "1000", "10000" })
+   public int bars;
+
+   private String text;
+   private File   textfile;
+   private File   binfile;
+
+   @Setup(Level.Trial)
+   public void setup() throws IOException, ParseException
+   {
+      text     = Generator.score(8, bars, 2);
+      textfile = File.createTempFile("score", ".cn");
+      binfile  = File.createTempFile("score", ".cnb");
+      Files.write(textfile.toPath(), text.getBytes(StandardCharsets.UTF_8));
+      BinaryScore.write(new Parser().parse(text), binfile);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown()
+   {
+      textfile.delete();
+      binfile.delete();
+   }
+
+   @Benchmark
+   public Score parseString() throws ParseException
+   {
+      return new Parser().parse(text);
+   }
+
+   @Benchmark
+   public Score loadText() throws IOException, ParseException
+   {
+      String te = new String(Files.readAllBytes(textfile.toPath()), StandardCharsets.UTF_8).trim();
+      return new Parser().parse(te);
+   }
+
+   @Benchmark
+   public Score loadBinary() throws IOException, ParseException
+   {
+      return new BinaryScore().read(binfile);
+   }
+
+   @Benchmark
+   public FlatScore loadTextFlat() throws IOException, ParseException
+   {
+      String te = new String(Files.readAllBytes(textfile.toPath()), StandardCharsets.UTF_8).trim();
+      return new FlatParser().parse(te);
+   }
+
+   @Benchmark
+   public FlatScore loadBinaryFlat() throws IOException, ParseException
+   {
+      return new BinaryScore().readFlat(binfile);
+   }
+}
@@ -0,0 +1,133 @@
+package org.rooi.cnotation2svg;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.jfree.graphics2d.svg.SVGGraphics2D;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.rooi.cnotation2svg.CNotation2SVG.Generator;
+import org.rooi.cnotation2svg.CNotation2SVG.GraphicsPainter;
+import org.rooi.cnotation2svg.CNotation2SVG.Painter;
+import org.rooi.cnotation2svg.CNotation2SVG.ParseException;
+import org.rooi.cnotation2svg.CNotation2SVG.Parser;
+import org.rooi.cnotation2svg.CNotation2SVG.RenderConfig;
+import org.rooi.cnotation2svg.CNotation2SVG.SVGWriter;
+import org.rooi.cnotation2svg.CNotation2SVG.Score;
+
+// Drawing a laid out score, without parsing or layout. Run with the
+// gc profiler: gc.alloc.rate.norm divided by the number of drawn
+// elements, printed by the setup, is the allocation per element.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DrawBenchmark
+{
+   @Param({ "100", "1000" })
+   public int bars;
+
+   private Score         score;
+   private Painter       counter;
+   private int           drawn;
+   private BufferedImage image;
+   private Graphics2D    g2;
+
+   // counts the glyphs and lines, draws nothing
+   static private class CountPainter implements Painter
+   {
+      int n = 0;
+
+      @Override
+      public void glyph(char c, float x, float y)
+      {
+         n++;
+      }
+
+      @Override
+      public void stroke(int x1, int y1, int x2, int y2)
+      {
+         n++;
+      }
+
+      @Override
+      public void hairline(int x1, int y1, int x2, int y2)
+      {
+         n++;
+      }
+
+      @Override
+      public boolean visible(int x, int y, int w, int h)
+      {
+         return true;
+      }
+
+      @Override
+      public RenderConfig getConfig()
+      {
+         return RenderConfig.DEFAULT;
+      }
+   }
+
+   @Setup(Level.Trial)
+   public void setup() throws ParseException
+   {
+      System.setProperty("java.awt.headless", "true");
+
+      score = new Parser().parse(Generator.score(1, bars, 2));
+      score.layout(new SVGGraphics2D(1, 1).getFontRenderContext(), RenderConfig.DEFAULT);
+
+      CountPainter cp = new CountPainter();
+      score.draw(cp);
+      drawn   = cp.n;
+      counter = new CountPainter();
+      System.out.println("\n" + drawn + " glyphs and lines drawn per operation");
+
+      image = new BufferedImage(score.getW(), score.getH(), BufferedImage.TYPE_INT_RGB);
+      g2    = image.createGraphics();
+      g2.setColor(Color.BLACK);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown()
+   {
+      g2.dispose();
+   }
+
+   // the walk over the tree only
+   @Benchmark
+   public Painter walk()
+   {
+      score.draw(counter);
+      return counter;
+   }
+
+   @Benchmark
+   public void writeSVG() throws Exception
+   {
+      SVGWriter sw = new SVGWriter(Writer.nullWriter(), RenderConfig.DEFAULT);
+      sw.begin(score.getW(), score.getH());
+      score.draw(sw);
+      sw.end();
+   }
+
+   @Benchmark
+   public BufferedImage drawImage()
+   {
+      GraphicsPainter p = new GraphicsPainter(g2, RenderConfig.DEFAULT);
+      score.draw(p);
+      p.restore();
+      return image;
+   }
+}
@@ -0,0 +1,91 @@
+package org.rooi.cnotation2svg;
+
+import java.awt.font.FontRenderContext;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.jfree.graphics2d.svg.SVGGraphics2D;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.rooi.cnotation2svg.CNotation2SVG.FlatParser;
+import org.rooi.cnotation2svg.CNotation2SVG.FlatScore;
+import org.rooi.cnotation2svg.CNotation2SVG.Generator;
+import org.rooi.cnotation2svg.CNotation2SVG.ParseException;
+import org.rooi.cnotation2svg.CNotation2SVG.Parser;
+import org.rooi.cnotation2svg.CNotation2SVG.RenderConfig;
+import org.rooi.cnotation2svg.CNotation2SVG.Score;
+
+// The Score tree against the FlatScore, from text to streamed SVG.
+// With the gc profiler gc.alloc.rate.norm is the bytes allocated per
+// operation, the heap held by each is shown by --memorybench.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FlatBenchmark
+{
+   @Param({ "1000", "10000" })
+   public int bars;
+
+   private String            text;
+   private Score             score;
+   private FlatScore         flat;
+   private FontRenderContext frc;
+
+   @Setup(Level.Trial)
+   public void setup() throws ParseException
+   {
+      System.setProperty("java.awt.headless", "true");
+
+      text  = Generator.score(8, bars, 2);
+      frc   = new SVGGraphics2D(1, 1).getFontRenderContext();
+      score = new Parser().parse(text);
+      flat  = new FlatParser().parse(text);
+   }
+
+   @Benchmark
+   public Score treeParse() throws ParseException
+   {
+      return new Parser().parse(text);
+   }
+
+   @Benchmark
+   public FlatScore flatParse() throws ParseException
+   {
+      return new FlatParser().parse(text);
+   }
+
+   @Benchmark
+   public Score treeLayout()
+   {
+      score.clearLok();
+      score.calcLayout(0, frc, RenderConfig.DEFAULT);
+      return score;
+   }
+
+   @Benchmark
+   public FlatScore flatLayout()
+   {
+      flat.layout(frc);
+      return flat;
+   }
+
+   @Benchmark
+   public void treeEndToEnd() throws Exception
+   {
+      new Parser().parse(text).writeSVG(Writer.nullWriter());
+   }
+
+   @Benchmark
+   public void flatEndToEnd() throws Exception
+   {
+      new FlatParser().parse(text).writeSVG(Writer.nullWriter());
+   }
+}
@@ -0,0 +1,91 @@
+package org.rooi.cnotation2svg;
+
+import java.awt.font.FontRenderContext;
+import java.util.concurrent.TimeUnit;
+
+import org.jfree.graphics2d.svg.SVGGraphics2D;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.rooi.cnotation2svg.CNotation2SVG.Generator;
+import org.rooi.cnotation2svg.CNotation2SVG.Note;
+import org.rooi.cnotation2svg.CNotation2SVG.ParseException;
+import org.rooi.cnotation2svg.CNotation2SVG.Parser;
+import org.rooi.cnotation2svg.CNotation2SVG.SElement;
+import org.rooi.cnotation2svg.CNotation2SVG.Score;
+
+// Layout after changing one note in the middle of a long score,
+// against a layout of the whole score. Only the path to the note is
+// laid out again, with or without a new width ('c' and 'x' have the
+// same width in Serif, 'W' not). The elements after a wider or
+// narrower note keep the move until the next draw, getX() adds it:
+// editNewWidthGetX reads the x of the last element after the edit.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RelayoutBenchmark
+{
+   @Param({ "1000", "10000", "100000" })
+   public int bars;
+
+   private Score             score;
+   private Note              note;
+   private FontRenderContext frc;
+   private boolean           wide = false;
+
+   @Setup(Level.Trial)
+   public void setup() throws ParseException
+   {
+      System.setProperty("java.awt.headless", "true");
+
+      frc   = new SVGGraphics2D(1, 1).getFontRenderContext();
+      score = new Parser().parse(Generator.score(2, bars, 2));
+      score.layout(frc);
+
+      // voice elements alternate barline and bar, a bar starts with a note
+      note = (Note) score.get(0).get(bars | 1).get(0);
+   }
+
+   @Benchmark
+   public Score editSameWidth()
+   {
+      wide = !wide;
+      note.setChar(wide ? 'x' : 'c');
+      score.ensureLayout(frc);
+      return score;
+   }
+
+   @Benchmark
+   public Score editNewWidth()
+   {
+      wide = !wide;
+      note.setChar(wide ? 'W' : 'c');
+      score.ensureLayout(frc);
+      return score;
+   }
+
+   @Benchmark
+   public int editNewWidthGetX()
+   {
+      wide = !wide;
+      note.setChar(wide ? 'W' : 'c');
+      score.ensureLayout(frc);
+      SElement voice = score.get(0);
+      return voice.get(voice.size() - 1).getX();
+   }
+
+   @Benchmark
+   public Score fullLayout()
+   {
+      score.clearLok();
+      score.layout(frc);
+      return score;
+   }
+}
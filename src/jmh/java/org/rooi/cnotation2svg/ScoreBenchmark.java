@@ -0,0 +1,121 @@
+package org.rooi.cnotation2svg;
+
+import java.awt.font.FontRenderContext;
+import java.io.Writer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.jfree.graphics2d.svg.SVGGraphics2D;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.rooi.cnotation2svg.CNotation2SVG.Generator;
+import org.rooi.cnotation2svg.CNotation2SVG.ParseException;
+import org.rooi.cnotation2svg.CNotation2SVG.Parser;
+import org.rooi.cnotation2svg.CNotation2SVG.RenderConfig;
+import org.rooi.cnotation2svg.CNotation2SVG.Score;
+
+// Parse, layout and SVG output of generated scores.
+// Run with: gradle jmh
+// the gc profiler adds the allocation rate to each result.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ScoreBenchmark
+{
+   @Param({ "1", "8" })
+   public int voices;
+
+   @Param({ "100", "1000" })
+   public int bars;
+
+   @Param({ "0", "3" })
+   public int depth;
+
+   private String            text;
+   private Score             score;   // laid out once, for the draw benchmarks
+   private Score             shared;  // parsed with shared bars and lines
+   private FontRenderContext frc;
+   private ForkJoinPool      pool;    // for the parallel voice layout
+
+   @Setup(Level.Trial)
+   public void setup() throws ParseException
+   {
+      System.setProperty("java.awt.headless", "true");
+
+      text  = Generator.score(voices, bars, depth);
+      frc   = new SVGGraphics2D(1, 1).getFontRenderContext();
+      score = new Parser().parse(text);
+      score.layout(frc);
+
+      Parser parser = new Parser();
+      parser.setShare(true);
+      shared = parser.parse(text);
+
+      pool = new ForkJoinPool();
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown()
+   {
+      pool.shutdown();
+   }
+
+   @Benchmark
+   public Score parse() throws ParseException
+   {
+      return new Parser().parse(text);
+   }
+
+   @Benchmark
+   public Score layout()
+   {
+      score.clearLok();
+      score.calcLayout(0, frc, RenderConfig.DEFAULT);
+      return score;
+   }
+
+   @Benchmark
+   public Score layoutParallel()
+   {
+      score.clearLok();
+      score.layout(frc, RenderConfig.DEFAULT, pool);
+      return score;
+   }
+
+   @Benchmark
+   public Score layoutShared()
+   {
+      shared.clearLok();
+      shared.calcLayout(0, frc, RenderConfig.DEFAULT);
+      return shared;
+   }
+
+   @Benchmark
+   public SVGGraphics2D drawSVGGraphics2D()
+   {
+      SVGGraphics2D g2 = new SVGGraphics2D(score.getW(), score.getH());
+      score.draw(g2);
+      return g2;
+   }
+
+   @Benchmark
+   public void writeSVG() throws Exception
+   {
+      score.writeSVG(Writer.nullWriter());
+   }
+
+   @Benchmark
+   public String endToEnd() throws ParseException
+   {
+      return new Parser().parse(text).toSVG();
+   }
+}
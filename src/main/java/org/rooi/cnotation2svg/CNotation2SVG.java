@@ -1,30 +1,88 @@
 package org.rooi.cnotation2svg;
 
 import java.awt.Color;
+import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Rectangle;
+import java.awt.RenderingHints;
 import java.awt.Stroke;
+import java.awt.event.MouseEvent;
 import java.awt.BasicStroke;
 import java.awt.font.FontRenderContext;
 import java.awt.font.LineMetrics;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
 import javax.swing.JFrame;
 import javax.swing.JPanel;
+import javax.swing.JScrollPane;
 
 import org.jfree.graphics2d.svg.SVGGraphics2D;
 
+import com.googlecode.lanterna.TerminalSize;
+import com.googlecode.lanterna.TextCharacter;
+import com.googlecode.lanterna.input.KeyStroke;
+import com.googlecode.lanterna.screen.Screen;
+import com.googlecode.lanterna.terminal.DefaultTerminalFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+
 
 public class CNotation2SVG
 {
+   // the default settings, see RenderConfig
    static public class Config
    {
       static public final boolean withborder = false; 
+      static public final String  fontname   = "Serif";
       static public final int     ptsize     = 40;  // size of font in pt
       static public final float   linestroke = 0.05f * ptsize;
       
@@ -36,20 +94,389 @@ public class CNotation2SVG
       static public final int     barlinewidth = (int)(0.3 * ptsize);
    }
 
+   // The settings of one render. A RenderConfig cannot change, so
+   // scores of different sizes can be rendered at the same time, each
+   // with its own config. The sizes that follow from the font size,
+   // the stroke and the font are made once per config.
+   static public class RenderConfig
+   {
+      static public final RenderConfig DEFAULT = new RenderConfig(Config.fontname, Config.ptsize, Config.withborder);
+
+      private final String      fontname;
+      private final int         ptsize;        // size of font in pt
+      private final boolean     withborder;
+      private final float       linestroke;
+      private final int         lineheight;    // horizontal line
+      private final int         linemarge;
+      private final int         barlinewidth;
+      private final int         clipmarge;     // ink outside the bounds of an element
+      private final BasicStroke stroke;
+      private final Font        font;
+      private final ForkJoinPool layoutpool;  // null: lay out on the calling thread
+
+      public RenderConfig(String fname, int pt, boolean border)
+      {
+         this(fname, pt, border, null);
+      }
+
+      public RenderConfig(String fname, int pt, boolean border, ForkJoinPool pool)
+      {
+         fontname     = fname;
+         ptsize       = pt;
+         withborder   = border;
+         linestroke   = 0.05f * pt;
+         lineheight   = (int)(0.25 * pt);
+         linemarge    = (int)(0.12 * pt);
+         barlinewidth = (int)(0.3 * pt);
+         clipmarge    = (int) linestroke + 2;
+         stroke       = new BasicStroke(linestroke);
+         font         = GlyphCache.getFont(fontname, Font.PLAIN, ptsize);
+         layoutpool   = pool;
+      }
+
+      public RenderConfig withSize(int pt)
+      {
+         return new RenderConfig(fontname, pt, withborder, layoutpool);
+      }
+
+      public RenderConfig withBorder(boolean border)
+      {
+         return new RenderConfig(fontname, ptsize, border, layoutpool);
+      }
+
+      // The voices of a score are laid out in parallel on pool, null
+      // lays out on the calling thread. The layout is the same either
+      // way, so the pool is not part of equals().
+      public RenderConfig withLayoutPool(ForkJoinPool pool)
+      {
+         return new RenderConfig(fontname, ptsize, withborder, pool);
+      }
+
+      public ForkJoinPool getLayoutPool()
+      {
+         return layoutpool;
+      }
+
+      public String getFontname()
+      {
+         return fontname;
+      }
+
+      public int getPtsize()
+      {
+         return ptsize;
+      }
+
+      public boolean hasBorder()
+      {
+         return withborder;
+      }
+
+      public float getLinestroke()
+      {
+         return linestroke;
+      }
+
+      public int getLineheight()
+      {
+         return lineheight;
+      }
+
+      public int getLinemarge()
+      {
+         return linemarge;
+      }
+
+      public int getBarlinewidth()
+      {
+         return barlinewidth;
+      }
+
+      public int getClipmarge()
+      {
+         return clipmarge;
+      }
+
+      public BasicStroke getStroke()
+      {
+         return stroke;
+      }
+
+      public Font getFont()
+      {
+         return font;
+      }
+
+      // the derived values follow from these three
+      @Override
+      public boolean equals(Object o)
+      {
+         if (!(o instanceof RenderConfig))
+         {
+            return false;
+         }
+         RenderConfig rc = (RenderConfig) o;
+         return fontname.equals(rc.fontname) && ptsize == rc.ptsize && withborder == rc.withborder;
+      }
+
+      @Override
+      public int hashCode()
+      {
+         return (fontname.hashCode() * 31 + ptsize) * 2 + (withborder ? 1 : 0);
+      }
+
+      public String toString()
+      {
+         return fontname + " " + ptsize + (withborder ? " border" : "");
+      }
+   }
+
    static public class Indent
    {
-      public static void indent(int d)
+      public static void indent(PrintStream out, int d)
       {
          for (int i=0; i < d; i++)
          {
-            System.out.print("   ");
+            out.print("   ");
+         }
+      }
+   }
+
+   // Trace output of the parser and the layout.
+   // It is off by default, call sites test Trace.on() first
+   // so no strings are built when tracing is disabled.
+   // The level can also be set with -Dcnotation2svg.trace=tree|debug
+   static public class Trace
+   {
+      static public final int OFF   = 0;
+      static public final int TREE  = 1;  // dump the element tree after each draw
+      static public final int DEBUG = 2;  // trace every parse and layout step
+
+      static private volatile int         level = parseLevel(System.getProperty("cnotation2svg.trace", "off"));
+      static private volatile PrintStream out   = System.out;
+
+      static public int parseLevel(String name)
+      {
+         if (name.equalsIgnoreCase("debug"))
+         {
+            return DEBUG;
+         }
+         if (name.equalsIgnoreCase("tree"))
+         {
+            return TREE;
+         }
+         return OFF;
+      }
+
+      static public boolean on(int lv)
+      {
+         return level >= lv;
+      }
+
+      static public int getLevel()
+      {
+         return level;
+      }
+
+      static public void setLevel(int lv)
+      {
+         level = lv;
+      }
+
+      static public void setOut(PrintStream ps)
+      {
+         out = ps;
+      }
+
+      static public void println(int d, String s)
+      {
+         PrintStream ps = out;
+         synchronized (ps)
+         {
+            Indent.indent(ps, d);
+            ps.println(s);
+         }
+      }
+   }
+
+   // ascent, descent and advance width of one character
+   static public class GlyphMetrics
+   {
+      private final float ascent;
+      private final float descent;
+      private final float width;
+
+      public GlyphMetrics(float asc, float desc, float wi)
+      {
+         ascent  = asc;
+         descent = desc;
+         width   = wi;
+      }
+
+      public float getAscent()
+      {
+         return ascent;
+      }
+
+      public float getDescent()
+      {
+         return descent;
+      }
+
+      public float getWidth()
+      {
+         return width;
+      }
+   }
+
+   // Fonts and glyph metrics shared by all notes.
+   // The metrics are keyed by font, character and the hints of the
+   // FontRenderContext, all methods can be called from any thread.
+   static public class GlyphCache
+   {
+      static private final class FontKey
+      {
+         private final String family;
+         private final int    style;
+         private final int    size;
+
+         FontKey(String fa, int st, int si)
+         {
+            family = fa;
+            style  = st;
+            size   = si;
+         }
+
+         @Override
+         public boolean equals(Object o)
+         {
+            if (!(o instanceof FontKey))
+            {
+               return false;
+            }
+            FontKey k = (FontKey) o;
+            return style == k.style && size == k.size && family.equals(k.family);
+         }
+
+         @Override
+         public int hashCode()
+         {
+            return (family.hashCode() * 31 + style) * 31 + size;
          }
       }
+
+      static private final class GlyphKey
+      {
+         private final Font              font;
+         private final char              c;
+         private final FontRenderContext frc;  // compares transform and hints
+
+         GlyphKey(Font fo, char cc, FontRenderContext fr)
+         {
+            font = fo;
+            c    = cc;
+            frc  = fr;
+         }
+
+         @Override
+         public boolean equals(Object o)
+         {
+            if (!(o instanceof GlyphKey))
+            {
+               return false;
+            }
+            GlyphKey k = (GlyphKey) o;
+            return c == k.c && font.equals(k.font) && frc.equals(k.frc);
+         }
+
+         @Override
+         public int hashCode()
+         {
+            return (font.hashCode() * 31 + c) * 31 + frc.hashCode();
+         }
+      }
+
+      static private final ConcurrentHashMap<FontKey, Font>          fonts   = new ConcurrentHashMap<FontKey, Font>();
+      static private final ConcurrentHashMap<GlyphKey, GlyphMetrics> metrics = new ConcurrentHashMap<GlyphKey, GlyphMetrics>();
+      static private final AtomicLong hits   = new AtomicLong();
+      static private final AtomicLong misses = new AtomicLong();
+
+      // a String per character, drawString() needs one for each glyph
+      static private final String[] texts = new String[256];
+      static
+      {
+         for (int i=0; i < texts.length; i++)
+         {
+            texts[i] = String.valueOf((char) i);
+         }
+      }
+
+      static public String text(char c)
+      {
+         return c < texts.length ? texts[c] : String.valueOf(c);
+      }
+
+      static public Font getFont(String family, int style, int size)
+      {
+         FontKey key = new FontKey(family, style, size);
+         Font font = fonts.get(key);
+         if (font == null)
+         {
+            font = new Font(family, style, size);
+            Font old = fonts.putIfAbsent(key, font);
+            if (old != null)
+            {
+               font = old;
+            }
+         }
+         return font;
+      }
+
+      static public GlyphMetrics getMetrics(Font font, char c, FontRenderContext frc)
+      {
+         GlyphKey key = new GlyphKey(font, c, frc);
+         GlyphMetrics gm = metrics.get(key);
+         if (gm != null)
+         {
+            hits.incrementAndGet();
+            return gm;
+         }
+         misses.incrementAndGet();
+
+         String s = text(c);
+         LineMetrics lm = font.getLineMetrics(s, frc);
+         gm = new GlyphMetrics(lm.getAscent(), lm.getDescent(), (float) font.getStringBounds(s, frc).getWidth());
+
+         GlyphMetrics old = metrics.putIfAbsent(key, gm);
+         return old != null ? old : gm;
+      }
+
+      static public long getHits()
+      {
+         return hits.get();
+      }
+
+      static public long getMisses()
+      {
+         return misses.get();
+      }
+
+      static public void clear()
+      {
+         fonts.clear();
+         metrics.clear();
+         hits.set(0);
+         misses.set(0);
+      }
    }
 
+   // Elements only refer to their own children, so separate Score trees
+   // can be parsed, laid out and drawn on different threads at the same time.
+   // The only state shared between trees is the element counter and
+   // the GlyphCache, both are thread-safe.
    static public abstract class SElement
    {
-      static private int nrctr = 0;
+      static private final AtomicInteger nrctr = new AtomicInteger();
       private int     nr;
       private int     x;
       private int     y;
@@ -57,14 +484,15 @@ public class CNotation2SVG
       private int     h;
       private boolean hasbaseline;
       private int     baseline;
-      private boolean border;
       private boolean lok;  // is layout ok
       private boolean whok; // is wh ok
+      private SElement parent;
+      private int     listindex;  // position in the list of the parent Group
+      private volatile boolean stalex = false;  // children still have to move, see Group.settle()
       
       public SElement()
       {
-         nr     = nrctr++;
-         border = Config.withborder;
+         nr     = nrctr.getAndIncrement();
          lok    = false;
          whok   = false;
          x = 0;
@@ -77,8 +505,7 @@ public class CNotation2SVG
 
       public SElement(int xx, int yy)
       {
-         nr     = nrctr++;
-         border = Config.withborder;
+         nr     = nrctr.getAndIncrement();
          lok    = false;
          whok   = false;
          x = xx;
@@ -93,11 +520,66 @@ public class CNotation2SVG
          return nr;
       }
 
+      public SElement getParent()
+      {
+         return parent;
+      }
+
+      public void setParent(SElement pa)
+      {
+         parent = pa;
+      }
+
+      public int getListIndex()
+      {
+         return listindex;
+      }
+
+      public void setListIndex(int i)
+      {
+         listindex = i;
+      }
+
+      // A width change can leave the following siblings to be moved
+      // later, the parent adds what this element still has to move.
       public int getX()
+      {
+         SElement pa = parent;
+         if (pa != null && pa.stalex)
+         {
+            return pa.shiftedX(this);
+         }
+         return x;
+      }
+
+      // x without the moves still to do, for drawing,
+      // a Group settles its children before it draws them
+      protected int getRawX()
       {
          return x;
       }
 
+      // x of the child el with the moves still to do, see Group
+      protected int shiftedX(SElement el)
+      {
+         return el.x;
+      }
+
+      protected boolean isStaleX()
+      {
+         return stalex;
+      }
+
+      protected void setStaleX(boolean st)
+      {
+         stalex = st;
+      }
+
+      // does the moves of the children still to do, see Group
+      protected void settle()
+      {
+      }
+
       public int getY()
       {
          return y;
@@ -128,6 +610,13 @@ public class CNotation2SVG
          w = ww;
       }
 
+      // The width this element needs, a VGroup can stretch
+      // the width of a bar to the width of its column.
+      public int getNaturalW()
+      {
+         return w;
+      }
+
       public void setH(int hh)
       {
          h = hh;
@@ -148,11 +637,6 @@ public class CNotation2SVG
          baseline = bsl;
       }
 
-      public boolean hasBorder()
-      {
-         return border;
-      }
-
       public boolean isLok()
       {
          return lok;
@@ -173,9 +657,39 @@ public class CNotation2SVG
          whok = whk;
       }
 
+      // Marks this element and its ancestors for a new layout.
+      // Each parent is told which child changed, so that only that
+      // child is laid out again. A dirty element only has dirty
+      // ancestors, so the walk stops at the first dirty parent.
+      public void invalidate()
+      {
+         SElement el = this;
+         while (el.lok || el.whok)
+         {
+            el.lok  = false;
+            el.whok = false;
+            SElement pa = el.parent;
+            if (pa == null)
+            {
+               break;
+            }
+            pa.childInvalidated(el);
+            el = pa;
+         }
+      }
+
+      protected void childInvalidated(SElement el)
+      {
+      }
+
+      // true when the last layout moved or resized the children
+      public boolean hasMovedChildren()
+      {
+         return false;
+      }
+
       public void clearLok()
       {
-         border = Config.withborder;
          lok    = false;
          whok   = false;
          x = 0;
@@ -196,17 +710,29 @@ public class CNotation2SVG
       }
 
       abstract protected void calcWH(int d);
-      abstract public void calcLayout(int d, Graphics g);
+      abstract public void calcLayout(int d, FontRenderContext frc, RenderConfig rc);
       abstract public void show(int d);
       
-      public void draw(int dx, int dy, Graphics g)
+      // draws the element with its children
+      public void draw(int dx, int dy, Painter p)
+      {
+         drawSelf(dx, dy, p);
+      }
+
+      // draws only the element itself, not its children
+      public void drawSelf(int dx, int dy, Painter p)
+      {
+         drawBorder(dx, dy, p);
+      }
+
+      protected void drawBorder(int dx, int dy, Painter p)
       {
-         if (border)
+         if (p.getConfig().hasBorder())
          {
-            g.drawLine(dx + x,     dy + y,     dx + x + w, dy + y);
-            g.drawLine(dx + x + w, dy + y,     dx + x + w, dy + y + h);
-            g.drawLine(dx + x + w, dy + y + h, dx + x,     dy + y + h);
-            g.drawLine(dx + x,     dy + y + h, dx + x,     dy + y);
+            p.hairline(dx + x,     dy + y,     dx + x + w, dy + y);
+            p.hairline(dx + x + w, dy + y,     dx + x + w, dy + y + h);
+            p.hairline(dx + x + w, dy + y + h, dx + x,     dy + y + h);
+            p.hairline(dx + x,     dy + y + h, dx + x,     dy + y);
          }
       }
    }
@@ -229,11 +755,21 @@ public class CNotation2SVG
          c = cc;
       }
 
+      public char getChar()
+      {
+         return c;
+      }
+
+      public void setChar(char cc)
+      {
+         c = cc;
+         invalidate();
+      }
+
       @Override
       public void show(int d)
       {
-         Indent.indent(d);
-         System.out.println("Note #" + getNr() + " " + c + " " + getX() + " " + getY() + " " + getBaseline());
+         Trace.println(d, "Note #" + getNr() + " " + c + " " + getX() + " " + getY() + " " + getBaseline());
       }
 
       @Override
@@ -245,32 +781,29 @@ public class CNotation2SVG
          }
          setWHok(true);
          
-         Indent.indent(d);
-         System.out.println("Note.calcWH #" + getNr());
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(d, "Note.calcWH #" + getNr());
+         }
       }
       
       @Override 
-      public void calcLayout(int d, Graphics g)
+      public void calcLayout(int d, FontRenderContext frc, RenderConfig rc)
       {
          if (isLok())
          {
             return;
          }
          
-         Graphics2D g2 = (Graphics2D) g;
-
-         Indent.indent(d);
-         System.out.println("Note.calcLayout() #" + getNr());
-         
-         Font font = new Font("Serif", Font.PLAIN, Config.ptsize);
-         g2.setFont(font);
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(d, "Note.calcLayout() #" + getNr());
+         }
          
-         FontRenderContext frc = g2.getFontRenderContext();
-         String s = String.format("%c", c);
-         LineMetrics lm = font.getLineMetrics(s, frc);
-         ascent  = lm.getAscent();
-         descent = lm.getDescent();
-         width   = (float) font.getStringBounds(s, frc).getWidth();
+         GlyphMetrics gm = GlyphCache.getMetrics(rc.getFont(), c, frc);
+         ascent  = gm.getAscent();
+         descent = gm.getDescent();
+         width   = gm.getWidth();
          
          setW((int) width);
          setH((int) (descent + ascent));
@@ -284,20 +817,14 @@ public class CNotation2SVG
       }
 
       @Override
-      public void draw(int dx, int dy, Graphics g)
+      public void drawSelf(int dx, int dy, Painter p)
       {
-         Graphics2D g2 = (Graphics2D) g;
-
-         Font font = new Font("Serif", Font.PLAIN, Config.ptsize);
-         g2.setFont(font);
-         
-         super.draw(dx, dy, g2);
-         String s = String.format("%c", c);
-         //System.out.println("Note.draw() " + s + " " + (dx + getX()) + " " + (dy + getY()));
-         g2.drawString(s, dx + getX(), dy + getY() + ascent);
-         if (hasBorder())
+         super.drawSelf(dx, dy, p);
+         //System.out.println("Note.draw() " + c + " " + (dx + getX()) + " " + (dy + getY()));
+         p.glyph(c, dx + getRawX(), dy + getY() + ascent);
+         if (p.getConfig().hasBorder())
          {
-            g2.drawLine(dx + getX(), (int)(dy + getY() + ascent), (int)(dx + getX() + width), (int)(dy + getY() + ascent));
+            p.hairline(dx + getRawX(), (int)(dy + getY() + ascent), (int)(dx + getRawX() + width), (int)(dy + getY() + ascent));
          }
       }
    }
@@ -311,8 +838,7 @@ public class CNotation2SVG
       @Override
       public void show(int d)
       {
-         Indent.indent(d);
-         System.out.println("Barline #" + getNr() + " " + getX() + " " + getY() + " " + getBaseline() + " " + getW() + "x" + getH());
+         Trace.println(d, "Barline #" + getNr() + " " + getX() + " " + getY() + " " + getBaseline() + " " + getW() + "x" + getH());
       }
 
       @Override
@@ -330,49 +856,41 @@ public class CNotation2SVG
          }
          setWHok(true);
          
-         Indent.indent(d);
-         System.out.println("Barline.calcWH #" + getNr());
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(d, "Barline.calcWH #" + getNr());
+         }
       }
       
       @Override 
-      public void calcLayout(int d, Graphics g)
+      public void calcLayout(int d, FontRenderContext frc, RenderConfig rc)
       {
          if (isLok())
          {
             return;
          }
          
-         Graphics2D g2 = (Graphics2D) g;
-
-         Indent.indent(d);
-         System.out.println("Barline.calcLayout() #" + getNr());
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(d, "Barline.calcLayout() #" + getNr());
+         }
          
-         setW(Config.barlinewidth);
+         setW(rc.getBarlinewidth());
          //setH( ... );
          
          setLok(true);
       }
 
       @Override
-      public void draw(int dx, int dy, Graphics g)
+      public void drawSelf(int dx, int dy, Painter p)
       {
-         Graphics2D g2 = (Graphics2D) g;
-         
          //System.out.println("Barline.draw() " + (dx + getX()) + " " + (dy + getY()));
 
-         super.draw(dx, dy, g2);
+         super.drawSelf(dx, dy, p);
 
-         Stroke bstr = g2.getStroke();
-         Stroke str = new BasicStroke(Config.linestroke);
-         g2.setStroke(str);
-         
-         //System.out.println("   line fr " + (dx + getX()) + " " + (dy + getY() + hline/2) );
-         //System.out.println("   line to " + (dx + getX() + getW()) + " " + (dy + getY() + hline/2) );
-         
          // draw the vertical line
-         g2.drawLine(dx + getX() + getW()/2, dy + getY(), 
-                     dx + getX() + getW()/2, dy + getY() + getH());
-         g2.setStroke(bstr);
+         p.stroke(dx + getRawX() + getW()/2, dy + getY(), 
+                  dx + getRawX() + getW()/2, dy + getY() + getH());
       }
    }
    
@@ -380,6 +898,13 @@ public class CNotation2SVG
    {
       protected ArrayList<SElement> list;
 
+      // state for a new layout after invalidate()
+      private boolean             full  = true;  // all children need a layout
+      private boolean             moved = true;  // the last layout moved children
+      private ArrayList<SElement> dirty = null;  // invalidated children
+      private boolean             shared = false; // the root of more than one container
+      private ShiftTree           shifts = null;  // moves of the children still to do
+
       public Group()
       {
          list = new ArrayList<SElement>();
@@ -397,6 +922,31 @@ public class CNotation2SVG
          return list.size();
       }
 
+      public void setShared(boolean sh)
+      {
+         shared = sh;
+      }
+
+      public boolean isShared()
+      {
+         return shared;
+      }
+
+      // Runs r as a task of the layout pool of rc, so r can fork
+      // more tasks. A worker of that pool runs r itself.
+      static protected void inLayoutPool(RenderConfig rc, Runnable r)
+      {
+         ForkJoinPool pool = rc.getLayoutPool();
+         if (ForkJoinTask.getPool() == pool)
+         {
+            r.run();
+         }
+         else
+         {
+            pool.invoke(ForkJoinTask.adapt(r));
+         }
+      }
+
       @Override
       public SElement get(int i)
       {
@@ -407,6 +957,8 @@ public class CNotation2SVG
       public void clearLok()
       {
          super.clearLok();
+         full  = true;
+         dirty = null;
          for (SElement el: list)
          {
             el.clearLok();
@@ -415,30 +967,255 @@ public class CNotation2SVG
 
       public void add(SElement el)
       {
+         if (isStaleX())
+         {
+            settle();
+         }
          list.add(el);
+         el.setParent(this);
+         el.setListIndex(list.size() - 1);
+         full = true;
+         invalidate();
+      }
+
+      public void set(int i, SElement el)
+      {
+         if (isStaleX())
+         {
+            settle();
+         }
+         list.get(i).setParent(null);
+         list.set(i, el);
+         el.setParent(this);
+         el.setListIndex(i);
+         full = true;
+         invalidate();
+      }
+
+      public SElement remove(int i)
+      {
+         if (isStaleX())
+         {
+            settle();
+         }
+         SElement el = list.remove(i);
+         el.setParent(null);
+         for (int k=i; k < list.size(); k++)
+         {
+            list.get(k).setListIndex(k);
+         }
+         full = true;
+         invalidate();
+         return el;
       }
 
       @Override
-      public void draw(int dx, int dy, Graphics g)
+      protected void childInvalidated(SElement el)
+      {
+         if (!full)
+         {
+            if (dirty == null)
+            {
+               dirty = new ArrayList<SElement>();
+            }
+            dirty.add(el);
+         }
+      }
+
+      @Override
+      public boolean hasMovedChildren()
+      {
+         return moved;
+      }
+
+      // Lays out only the invalidated children. When none of them changed
+      // its height or baseline, they keep the place and width the layout
+      // gave them before and true is returned. A new width is passed to
+      // widthChanged(), the siblings after it are moved later.
+      // Otherwise the caller has to align all children again.
+      // aligned: the children of the children are aligned with each other,
+      // as the elements of the voices in a VGroup, so they must not move
+      protected boolean relayoutDirty(int d, FontRenderContext frc, RenderConfig rc, boolean aligned)
+      {
+         if (full)
+         {
+            return false;
+         }
+         if (dirty != null)
+         {
+            for (SElement el: dirty)
+            {
+               int nw  = el.getNaturalW();
+               int hh  = el.getH();
+               int bsl = el.getBaseline();
+               int yy  = el.getY();
+               int ww  = el.getW();
+               
+               el.calcLayout(d + 1, frc, rc);
+               el.calcWH(d + 1);
+               
+               if (el.getH() != hh || el.getBaseline() != bsl
+                   || (aligned && el.hasMovedChildren()))
+               {
+                  return false;
+               }
+               el.setY(yy);
+               if (el.getNaturalW() == nw)
+               {
+                  el.setW(ww);
+               }
+               else
+               if (!widthChanged(el, el.getNaturalW() - nw))
+               {
+                  return false;
+               }
+            }
+            dirty = null;
+         }
+         moved = false;
+         setWHok(true);
+         return true;
+      }
+
+      // The laid out child el is delta wider than before. Returns false
+      // when the group cannot take that without a new alignment.
+      protected boolean widthChanged(SElement el, int delta)
+      {
+         return false;
+      }
+
+      // Moves the children from i on by delta later, getX() adds the
+      // move until then. A width change then takes time in proportion
+      // to the depth of the tree and the log of the siblings, instead
+      // of the number of siblings.
+      synchronized protected void shiftFrom(int i, int delta)
+      {
+         if (i < list.size() && delta != 0)
+         {
+            if (shifts == null)
+            {
+               shifts = new ShiftTree();
+            }
+            shifts.add(i, delta, list.size());
+            setStaleX(true);
+         }
+      }
+
+      @Override
+      synchronized protected int shiftedX(SElement el)
+      {
+         int xx = el.getRawX();
+         if (shifts != null)
+         {
+            xx += shifts.shift(el.getListIndex());
+         }
+         return xx;
+      }
+
+      // does all moves still to do, in time in proportion to the children
+      @Override
+      synchronized protected void settle()
+      {
+         if (shifts != null && !shifts.isEmpty())
+         {
+            int[] mv = shifts.take();
+            for (int k=0, n=list.size(); k < n; k++)
+            {
+               SElement el = list.get(k);
+               el.setX(el.getRawX() + mv[k + 1]);
+            }
+            shifts.clear();
+         }
+         setStaleX(false);
+      }
+
+      // all children have their x, the moves still to do are forgotten
+      synchronized protected void clearShift()
+      {
+         if (shifts != null)
+         {
+            shifts.clear();
+         }
+         setStaleX(false);
+      }
+
+      // called at the end of a layout of all children
+      protected void laidOutAll()
+      {
+         full  = false;
+         moved = true;
+         dirty = null;
+         clearShift();
+      }
+
+      @Override
+      public void draw(int dx, int dy, Painter p)
       {
-         Graphics2D g2 = (Graphics2D) g;
-         
          //System.out.println("Group.draw() " + (dx + getX()) + " " + (dy + getY()));
 
-         super.draw(dx, dy, g2);
-         for (SElement el: list)
+         drawSelf(dx, dy, p);
+         if (isStaleX())
          {
-            el.draw(dx + getX(), dy + getY(), g2);
+            settle();
+         }
+         int     ox   = dx + getRawX();
+         int     oy   = dy + getY();
+         boolean cull = cullsChildren();
+         // by index, drawing makes no iterator
+         for (int i=0, n=list.size(); i < n; i++)
+         {
+            SElement el = list.get(i);
+            // children outside the painted area are skipped
+            if (!cull || p.visible(ox + el.getRawX(), oy + el.getY(), el.getW(), el.getH()))
+            {
+               el.draw(ox, oy, p);
+            }
          }
       }
+
+      // false when the children of the children can lie outside
+      // the bounds of the children, see VGroup
+      protected boolean cullsChildren()
+      {
+         return true;
+      }
    }
 
    static public class HGroup extends Group
    {
+      // the children measured or placed by one task, a group with no
+      // more children than this is laid out by one thread
+      static public final int parallelchunk = 256;
+
+      // the VGroup that aligns the children in columns, or null
+      private VGroup columns = null;
+
       public HGroup()
       {
       }
 
+      public void setColumns(VGroup vg)
+      {
+         columns = vg;
+      }
+
+      // The children after el move by delta. In columns the VGroup
+      // decides whether the column gets wider.
+      @Override
+      protected boolean widthChanged(SElement el, int delta)
+      {
+         setW(getW() + delta);
+         if (columns != null)
+         {
+            columns.columnChanged(el.getListIndex());
+         }
+         else
+         {
+            shiftFrom(el.getListIndex() + 1, delta);
+         }
+         return true;
+      }
+
       public HGroup(int xx, int yy)
       {
          super(xx, yy);
@@ -447,8 +1224,7 @@ public class CNotation2SVG
       @Override
       public void show(int d)
       {
-         Indent.indent(d);
-         System.out.println("HGroup #" + getNr() + " " + getX() + " " + getY() + " " + getBaseline() + " " + getW() + "x" + getH());
+         Trace.println(d, "HGroup #" + getNr() + " " + getX() + " " + getY() + " " + getBaseline() + " " + getW() + "x" + getH());
          for (SElement el: list)
          {
             el.show(d + 1);
@@ -464,8 +1240,10 @@ public class CNotation2SVG
          }
          setWHok(true);
 
-         Indent.indent(d);
-         System.out.println("HGroup.calcHW() #" + getNr());
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(d, "HGroup.calcHW() #" + getNr());
+         }
          
          for (SElement el: list)
          {
@@ -477,12 +1255,14 @@ public class CNotation2SVG
          int ww = 0;
          for (SElement el: list)
          {
-            ww += el.getW();
+            ww += el.getNaturalW();
          }
          setW(ww);
 
-         Indent.indent(d+1);
-         System.out.println("ww " + ww);
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(d+1, "ww " + ww);
+         }
 
          // search the highest child element and
          // take it's height as the global height
@@ -494,8 +1274,10 @@ public class CNotation2SVG
                if (el.getH() > hh)
                {
                   hh = el.getH();
-                  Indent.indent(d+1);
-                  System.out.println("new hh " + hh);
+                  if (Trace.on(Trace.DEBUG))
+                  {
+                     Trace.println(d+1, "new hh " + hh);
+                  }
                }
             }
          }
@@ -503,8 +1285,10 @@ public class CNotation2SVG
          // hh is now the calculated heigth
          setH(hh);
 
-         Indent.indent(d+1);
-         System.out.println("hh " + hh);
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(d+1, "hh " + hh);
+         }
          
          // search the highest baseline
          int bsl = 0;
@@ -512,14 +1296,18 @@ public class CNotation2SVG
          {
             if (el.withBaseline())
             {
-               Indent.indent(d+1);
-               System.out.println("el bsl " + el.getBaseline());
+               if (Trace.on(Trace.DEBUG))
+               {
+                  Trace.println(d+1, "el bsl " + el.getBaseline());
+               }
 
                if (el.getBaseline() > bsl)
                {
                   bsl = el.getBaseline();
-                  Indent.indent(d+1);
-                  System.out.println("new bsl " + bsl);
+                  if (Trace.on(Trace.DEBUG))
+                  {
+                     Trace.println(d+1, "new bsl " + bsl);
+                  }
                }
             }
          }
@@ -527,32 +1315,40 @@ public class CNotation2SVG
          // bsl is now the calculated baseline
          setBaseline(bsl);
          
-         Indent.indent(d+1);
-         System.out.println("bsl " + bsl);
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(d+1, "bsl " + bsl);
+         }
          
          // align all child elements at the calculated baseline
          for (SElement el: list)
          {
             if (el.withBaseline())
             {
-               Indent.indent(d+1);
-               System.out.println("with baseline");
-               if (el.getBaseline() < getBaseline())
+               if (Trace.on(Trace.DEBUG))
+               {
+                  Trace.println(d+1, "with baseline");
+               }
+               // y is set absolutely, a child that kept its layout
+               // can be aligned again without moving it twice
+               int dy = getBaseline() - el.getBaseline();
+               if (Trace.on(Trace.DEBUG))
+               {
+                  Trace.println(d+1, "dy " + dy);
+                  Trace.println(d+1, "y oud   " + el.getY());
+               }
+               el.setY(dy);
+               if (Trace.on(Trace.DEBUG))
                {
-                  int dy = getBaseline() - el.getBaseline();
-                  Indent.indent(d+1);
-                  System.out.println("dy " + dy);
-                  Indent.indent(d+1);
-                  System.out.println("y oud   " + el.getY());
-                  el.setY(el.getY() + dy);
-                  Indent.indent(d+1);
-                  System.out.println("y nieuw " + el.getY());
+                  Trace.println(d+1, "y nieuw " + el.getY());
                }
             }
             else
             {
-               Indent.indent(d+1);
-               System.out.println("no baseline");
+               if (Trace.on(Trace.DEBUG))
+               {
+                  Trace.println(d+1, "no baseline");
+               }
                // this element has no baseline
                el.setH(hh);
             }
@@ -560,42 +1356,140 @@ public class CNotation2SVG
       }
 
       @Override 
-      public void calcLayout(int d, Graphics g)
+      public void calcLayout(int d, FontRenderContext frc, RenderConfig rc)
       {
          if (isLok())
          {
             return;
          }
 
-         Graphics2D g2 = (Graphics2D) g;
-         
-         Indent.indent(d);
-         System.out.println("HGroup.calcLayout() #" + getNr());
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(d, "HGroup.calcLayout() #" + getNr());
+         }
 
-         for (SElement el: list)
+         if (relayoutDirty(d, frc, rc, false))
+         {
+            setLok(true);
+            return;
+         }
+
+         // placed here, a VGroup aligns them again afterwards
+         columns = null;
+
+         // a long voice with the layout pool of rc
+         boolean parallel = list.size() > parallelchunk && rc.getLayoutPool() != null;
+         if (parallel)
+         {
+            inLayoutPool(rc, () -> layoutChildren(0, list.size(), d, frc, rc));
+         }
+         else
          {
-            el.calcLayout(d + 1, g);
+            for (SElement el: list)
+            {
+               el.calcLayout(d + 1, frc, rc);
+            }
          }
 
          calcWH(d + 1);
 
          // position all the child elements
-         int xx = 0;
-         int yy = 0;
-         for (SElement el: list)
+         if (parallel)
+         {
+            inLayoutPool(rc, this::placeChildren);
+         }
+         else
          {
-            Indent.indent(d);
-            System.out.println("HGroup.calcLayout() xx " + xx);
-            el.setX(xx);
-            xx += el.getW();
+            int xx = 0;
+            for (SElement el: list)
+            {
+               if (Trace.on(Trace.DEBUG))
+               {
+                  Trace.println(d, "HGroup.calcLayout() xx " + xx);
+               }
+               el.setX(xx);
+               xx += el.getNaturalW();
+            }
          }
 
+         laidOutAll();
          setLok(true);
       }
+
+      // Lays out the children lo .. hi-1 as tasks of the pool. A child
+      // depends only on its own subtree, the chunks are split in halves.
+      private void layoutChildren(int lo, int hi, int d, FontRenderContext frc, RenderConfig rc)
+      {
+         if (hi - lo <= parallelchunk)
+         {
+            for (int i=lo; i < hi; i++)
+            {
+               list.get(i).calcLayout(d + 1, frc, rc);
+            }
+            return;
+         }
+         int mid = (lo + hi) >>> 1;
+         ForkJoinTask.invokeAll(ForkJoinTask.adapt(() -> layoutChildren(lo, mid, d, frc, rc)),
+                                ForkJoinTask.adapt(() -> layoutChildren(mid, hi, d, frc, rc)));
+      }
+
+      // Sets x of the children with a parallel prefix sum: the width
+      // of each chunk, then the start of each chunk from those widths,
+      // then x within each chunk.
+      private void placeChildren()
+      {
+         int   n      = list.size();
+         int   chunks = (n + parallelchunk - 1) / parallelchunk;
+         int[] start  = new int[chunks + 1];
+
+         ArrayList<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>(chunks);
+         for (int c=0; c < chunks; c++)
+         {
+            final int cc = c;
+            tasks.add(ForkJoinTask.adapt(() ->
+            {
+               int ww = 0;
+               for (int i=cc * parallelchunk; i < Math.min(n, (cc + 1) * parallelchunk); i++)
+               {
+                  ww += list.get(i).getNaturalW();
+               }
+               start[cc + 1] = ww;
+            }));
+         }
+         ForkJoinTask.invokeAll(tasks);
+
+         for (int c=0; c < chunks; c++)
+         {
+            start[c + 1] += start[c];
+         }
+
+         tasks.clear();
+         for (int c=0; c < chunks; c++)
+         {
+            final int cc = c;
+            tasks.add(ForkJoinTask.adapt(() ->
+            {
+               int xx = start[cc];
+               for (int i=cc * parallelchunk; i < Math.min(n, (cc + 1) * parallelchunk); i++)
+               {
+                  SElement el = list.get(i);
+                  el.setX(xx);
+                  xx += el.getNaturalW();
+               }
+            }));
+         }
+         ForkJoinTask.invokeAll(tasks);
+      }
    }
    
    static public class VGroup extends Group
    {
+      // the bar columns of the last layout
+      private int[]   colw    = new int[0];
+      private int[]   colx    = new int[1];
+      private ShiftTree colshifts = new ShiftTree();  // moves of colx still to do
+      private IntList changed = new IntList();      // columns with a child of a new width
+
       public VGroup()
       {
       }
@@ -608,8 +1502,7 @@ public class CNotation2SVG
       @Override
       public void show(int d)
       {
-         Indent.indent(d);
-         System.out.println("VGroup #" + getNr() + " " + getX() + " " + getY() + " " + getBaseline() + " " + getW() + "x" + getH());
+         Trace.println(d, "VGroup #" + getNr() + " " + getX() + " " + getY() + " " + getBaseline() + " " + getW() + "x" + getH());
          for (SElement el: list)
          {
             el.show(d + 1);
@@ -625,8 +1518,10 @@ public class CNotation2SVG
          }
          setWHok(true);
 
-         Indent.indent(d);
-         System.out.println("VGroup.calcHW() #" + getNr());
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(d, "VGroup.calcHW() #" + getNr());
+         }
          
          for (SElement el: list)
          {
@@ -642,8 +1537,10 @@ public class CNotation2SVG
          }
          setH(hh);
 
-         Indent.indent(d+1);
-         System.out.println("hh " + hh);
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(d+1, "hh " + hh);
+         }
 
          // search the widest child element and
          // take it's width as the global width
@@ -653,16 +1550,20 @@ public class CNotation2SVG
             if (el.getW() > ww)
             {
                ww = el.getW();
-               Indent.indent(d+1);
-               System.out.println("new ww " + ww);
+               if (Trace.on(Trace.DEBUG))
+               {
+                  Trace.println(d+1, "new ww " + ww);
+               }
             }
          }
          
          // ww is now the calculated width
          setW(ww);
 
-         Indent.indent(d+1);
-         System.out.println("ww " + ww);
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(d+1, "ww " + ww);
+         }
          
          // find the highest number of elements all voices
          int si = 0;
@@ -673,88 +1574,190 @@ public class CNotation2SVG
                si = el.size();
             }
          }
-         Indent.indent(d+1);
-         System.out.println("si " + si);
-
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(d+1, "si " + si);
+         }
 
-         int xx = 0;
-         for (int i= 0; i<si; i++)
+         // the width of a column is the widest element
+         // with that index over all voices
+         int[] cw = new int[si];
+         for (SElement el: list)
          {
-            // set x
-            for (SElement el: list)
+            if (el instanceof AVoice)
             {
-               if (el instanceof AVoice)
+               AVoice av = (AVoice) el;
+               int n = av.size();
+               for (int i=0; i < n; i++)
                {
-                  AVoice av = (AVoice) el;
-                  // get element from voice
-                  SElement ell = av.get(i);
-                  if (ell != null)
+                  int ww2 = av.get(i).getNaturalW();
+                  if (ww2 > cw[i])
                   {
-                     ell.setX(xx);
+                     cw[i] = ww2;
                   }
                }
             }
-            
-            // calculate highest width
-            int ww2 = 0;
-            for (SElement el: list)
+         }
+
+         // start of each column, cx[si] is the total width
+         int[] cx = new int[si + 1];
+         for (int i= 0; i<si; i++)
+         {
+            cx[i + 1] = cx[i] + cw[i];
+            if (Trace.on(Trace.DEBUG))
+            {
+               Trace.println(d+1, "column " + i + " xx " + cx[i] + " ww " + cw[i]);
+            }
+         }
+         colw    = cw;
+         colx    = cx;
+         colshifts.clear();
+         changed.clear();
+
+         // set x of every element and the column width in each bar
+         for (SElement el: list)
+         {
+            if (el instanceof AVoice)
             {
-               if (el instanceof AVoice)
+               AVoice av = (AVoice) el;
+               HGroup gr = (HGroup) av.getRoot();
+               gr.setColumns(this);
+               gr.clearShift();
+               int n = av.size();
+               for (int i=0; i < n; i++)
                {
-                  AVoice av = (AVoice) el;
-                  // get element from voice
-                  SElement ell = av.get(i);
-                  if (ell != null && ell.getW() > ww2)
-                  {
-                     ww2 = ell.getW();
-                  }
+                  av.get(i).setX(cx[i]);
+               }
+               for (int k=0; k < av.getBarSize(); k++)
+               {
+                  int i = av.getBarIndex(k);
+                  av.get(i).setW(cw[i]);
                }
             }
-            Indent.indent(d+1);
-            System.out.println("ww rev " + ww2);
+         }
+         setW(cx[si]);
+      }
 
-            Indent.indent(d+1);
-            System.out.println("xx a " + xx);
-         
-            xx += ww2;
-         
-            Indent.indent(d+1);
-            System.out.println("xx b " + xx);
+      public int getColumnCount()
+      {
+         return colw.length;
+      }
+
+      // x of column i, getColumnX(getColumnCount()) is the end of the last column
+      synchronized public int getColumnX(int i)
+      {
+         return colx[i] + colshifts.shift(i);
+      }
+
+      // a child of a voice in column i has a new width
+      synchronized protected void columnChanged(int i)
+      {
+         changed.add(i);
+      }
 
-            // set width in each bar
+      // the voices report the columns of their wider or narrower children
+      @Override
+      protected boolean widthChanged(SElement el, int delta)
+      {
+         return el instanceof AVoice;
+      }
+
+      // Gives the changed columns the width of their widest element.
+      // The columns after one that changed width are moved later,
+      // see Group.shiftFrom().
+      private void alignChanged()
+      {
+         for (int k=0; k < changed.size(); k++)
+         {
+            int i  = changed.get(k);
+            int cw = 0;
+            for (SElement el: list)
+            {
+               if (el instanceof AVoice && i < el.size())
+               {
+                  cw = Math.max(cw, el.get(i).getNaturalW());
+               }
+            }
             for (SElement el: list)
             {
-               if (el instanceof AVoice)
+               if (el instanceof AVoice && i < el.size() && el.get(i) instanceof Bar)
+               {
+                  el.get(i).setW(cw);
+               }
+            }
+            int delta = cw - colw[i];
+            if (delta != 0)
+            {
+               colw[i] = cw;
+               synchronized (this)
+               {
+                  colshifts.add(i + 1, delta, colx.length);
+               }
+               setW(getW() + delta);
+               for (SElement el: list)
                {
-                  AVoice av = (AVoice) el;
-                  // get element from voice
-                  SElement ell = av.get(i);
-                  if (ell != null && ell instanceof Bar)
+                  if (el instanceof AVoice)
                   {
-                     ell.setW(ww2);
+                     ((AVoice) el).getRoot().shiftFrom(i + 1, delta);
                   }
                }
             }
          }
-         setW(xx);
+         changed.clear();
       }
 
-      @Override 
-      public void calcLayout(int d, Graphics g)
+      public int getColumnW(int i)
       {
-         if (isLok())
-         {
-            return;
-         }
+         return colw[i];
+      }
 
-         Graphics2D g2 = (Graphics2D) g;
-         
-         Indent.indent(d);
-         System.out.println("VGroup.calcLayout() #" + getNr());
+      // The bars of a voice are moved and widened into the columns,
+      // past the width of the voice itself. The voices are always
+      // drawn, their roots skip the bars outside the painted area.
+      @Override
+      protected boolean cullsChildren()
+      {
+         return false;
+      }
 
-         for (SElement el: list)
+      @Override 
+      public void calcLayout(int d, FontRenderContext frc, RenderConfig rc)
+      {
+         if (isLok())
+         {
+            return;
+         }
+
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(d, "VGroup.calcLayout() #" + getNr());
+         }
+
+         if (relayoutDirty(d, frc, rc, true))
+         {
+            alignChanged();
+            setLok(true);
+            return;
+         }
+
+         if (list.size() > 1 && rc.getLayoutPool() != null)
+         {
+            // The voices do not depend on each other until calcWH()
+            // aligns their columns, so they are laid out as tasks of
+            // the layout pool of rc.
+            ArrayList<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>(list.size());
+            for (SElement el: list)
+            {
+               tasks.add(ForkJoinTask.adapt(() -> el.calcLayout(d + 1, frc, rc)));
+            }
+            inLayoutPool(rc, () -> ForkJoinTask.invokeAll(tasks));
+         }
+         else
          {
-            el.calcLayout(d + 1, g);
+            for (SElement el: list)
+            {
+               el.calcLayout(d + 1, frc, rc);
+            }
          }
 
          calcWH(d + 1);
@@ -764,12 +1767,15 @@ public class CNotation2SVG
          int yy = 0;
          for (SElement el: list)
          {
-            Indent.indent(d);
-            System.out.println("VGroup.calcLayout() xx " + xx);
+            if (Trace.on(Trace.DEBUG))
+            {
+               Trace.println(d, "VGroup.calcLayout() xx " + xx);
+            }
             el.setY(yy);
             yy += el.getH();
          }
 
+         laidOutAll();
          setLok(true);
       }
    }
@@ -787,6 +1793,39 @@ public class CNotation2SVG
          super(xx, yy);
       }
 
+      public Group getRoot()
+      {
+         return root;
+      }
+
+      // uses the root of another container with the same contents,
+      // the parent of that root stays the other container
+      public void shareRoot(Group gr)
+      {
+         gr.setShared(true);
+         root = gr;
+      }
+
+      // Lays out the root and puts it at yy. Containers in two voices
+      // that are laid out at the same time can share a root, see
+      // VGroup.calcLayout(), the first one to get it lays it out.
+      protected void layoutRoot(int d, FontRenderContext frc, RenderConfig rc, int yy)
+      {
+         if (root.isShared())
+         {
+            synchronized (root)
+            {
+               root.calcLayout(d, frc, rc);
+               root.setY(yy);
+            }
+         }
+         else
+         {
+            root.calcLayout(d, frc, rc);
+            root.setY(yy);
+         }
+      }
+
       @Override
       public int size()
       {
@@ -811,6 +1850,28 @@ public class CNotation2SVG
          root.add(el);
       }
 
+      public void set(int i, SElement el)
+      {
+         root.set(i, el);
+      }
+
+      public SElement remove(int i)
+      {
+         return root.remove(i);
+      }
+
+      @Override
+      public int getNaturalW()
+      {
+         return root.getW();
+      }
+
+      @Override
+      public boolean hasMovedChildren()
+      {
+         return root.hasMovedChildren();
+      }
+
       @Override
       protected void calcWH(int d)
       {
@@ -828,17 +1889,19 @@ public class CNotation2SVG
       }
 
       @Override 
-      public void calcLayout(int d, Graphics g)
+      public void calcLayout(int d, FontRenderContext frc, RenderConfig rc)
       {
          if (isLok())
          {
             return;
          }
 
-         Indent.indent(d);
-         System.out.println("HContainer.calcLayout() #"  + getNr());
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(d, "HContainer.calcLayout() #"  + getNr());
+         }
 
-         root.calcLayout(d + 1, g);
+         layoutRoot(d + 1, frc, rc, 0);
          
          calcWH(d);
          
@@ -846,14 +1909,12 @@ public class CNotation2SVG
       }
 
       @Override
-      public void draw(int dx, int dy, Graphics g)
+      public void draw(int dx, int dy, Painter p)
       {
-         Graphics2D g2 = (Graphics2D) g;
-         
          //System.out.println("Container.draw() " + (dx + getX()) + " " + (dy + getY()));
 
-         super.draw(dx, dy, g2);
-         root.draw(dx + getX(), dy + getY(), g);
+         drawSelf(dx, dy, p);
+         root.draw(dx + getRawX(), dy + getY(), p);
       }
    }
 
@@ -862,6 +1923,7 @@ public class CNotation2SVG
       public HContainer()
       {
          root = new HGroup();
+         root.setParent(this);
       }
 
       public HContainer(int xx, int yy)
@@ -869,6 +1931,7 @@ public class CNotation2SVG
          super(xx, yy);
          
          root = new HGroup();
+         root.setParent(this);
       }
 
       @Override
@@ -885,6 +1948,7 @@ public class CNotation2SVG
       public VContainer()
       {
          root = new VGroup();
+         root.setParent(this);
       }
 
       public VContainer(int xx, int yy)
@@ -892,6 +1956,7 @@ public class CNotation2SVG
          super(xx, yy);
          
          root = new VGroup();
+         root.setParent(this);
       }
 
       @Override
@@ -905,7 +1970,7 @@ public class CNotation2SVG
    
    static public class Line extends HContainer
    {
-      static final int hline = Config.lineheight; // height of the line section
+      private int hline = Config.lineheight; // height of the line section, set by calcLayout
 
       public Line()
       {
@@ -919,8 +1984,7 @@ public class CNotation2SVG
       @Override
       public void show(int d)
       {
-         Indent.indent(d);
-         System.out.println("Line #" + getNr() + " " +getX() + " " + getY() + " " + getBaseline());
+         Trace.println(d, "Line #" + getNr() + " " +getX() + " " + getY() + " " + getBaseline());
          root.show(d + 1);
       }
 
@@ -933,8 +1997,10 @@ public class CNotation2SVG
          }
          setWHok(true);
 
-         Indent.indent(d);
-         System.out.println("Line.calcWH() #" + getNr());
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(d, "Line.calcWH() #" + getNr());
+         }
          root.calcWH(d + 1);
 
          setW(root.getW());
@@ -942,50 +2008,42 @@ public class CNotation2SVG
       }
 
       @Override 
-      public void calcLayout(int d, Graphics g)
+      public void calcLayout(int d, FontRenderContext frc, RenderConfig rc)
       {
          if (isLok())
          {
             return;
          }
 
-         Indent.indent(d);
-         System.out.println("Line.calcLayout() #"  + getNr());
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(d, "Line.calcLayout() #"  + getNr());
+         }
 
-         root.calcLayout(d + 1, g);
-         root.setY(hline);
+         hline = rc.getLineheight();
+         layoutRoot(d + 1, frc, rc, hline);
          setBaseline(hline + root.getBaseline());
 
-         Indent.indent(d);
-         System.out.println("Line.calcLayout() hline "  + hline);
-         Indent.indent(d);
-         System.out.println("Line.calcLayout() root baseline "  + root.getBaseline());
-         Indent.indent(d);
-         System.out.println("Line.calcLayout() baseline "  + getBaseline());
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(d, "Line.calcLayout() hline "  + hline);
+            Trace.println(d, "Line.calcLayout() root baseline "  + root.getBaseline());
+            Trace.println(d, "Line.calcLayout() baseline "  + getBaseline());
+         }
 
          setLok(true);
       }
 
       @Override
-      public void draw(int dx, int dy, Graphics g)
+      public void drawSelf(int dx, int dy, Painter p)
       {
-         Graphics2D g2 = (Graphics2D) g;
-         
          //System.out.println("Line.draw() " + (dx + getX()) + " " + (dy + getY()));
 
-         super.draw(dx, dy, g2);
+         super.drawSelf(dx, dy, p);
 
-         Stroke bstr = g2.getStroke();
-         Stroke str = new BasicStroke(Config.linestroke);
-         g2.setStroke(str);
-         
-         //System.out.println("   line fr " + (dx + getX()) + " " + (dy + getY() + hline/2) );
-         //System.out.println("   line to " + (dx + getX() + getW()) + " " + (dy + getY() + hline/2) );
-         g2.drawLine(dx + getX() + Config.linemarge, dy + getY() + hline/2, 
-                     dx + getX() + getW() - Config.linemarge, dy + getY() + hline/2);
-         g2.setStroke(bstr);
-         
-         root.draw(dx + getX(), dy + getY(), g);
+         int marge = p.getConfig().getLinemarge();
+         p.stroke(dx + getRawX() + marge, dy + getY() + hline/2, 
+                  dx + getRawX() + getW() - marge, dy + getY() + hline/2);
       }
    }
    
@@ -998,64 +2056,249 @@ public class CNotation2SVG
       // this method is only for testing
       // it can be omitted
       @Override 
-      public void calcLayout(int d, Graphics g)
+      public void calcLayout(int d, FontRenderContext frc, RenderConfig rc)
       {
-         Indent.indent(d);
-         System.out.println("Bar.calcLayout() #"  + getNr());
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(d, "Bar.calcLayout() #"  + getNr());
+         }
 
-         super.calcLayout(d + 1, g);
+         super.calcLayout(d + 1, frc, rc);
       }
 
       @Override
       public void show(int d)
       {
-         Indent.indent(d);
-         System.out.println("Bar #" + getNr() + " " + getX() + " " + getY() + " " + getBaseline() + " " + getW() + "x" + getH());
+         Trace.println(d, "Bar #" + getNr() + " " + getX() + " " + getY() + " " + getBaseline() + " " + getW() + "x" + getH());
          root.show(d + 1);
       }
    }
 
 
+   // A list of ints without boxing.
+   static public class IntList
+   {
+      private int[] data;
+      private int   size;
+
+      public IntList()
+      {
+         data = new int[8];
+         size = 0;
+      }
+
+      public int size()
+      {
+         return size;
+      }
+
+      public int get(int i)
+      {
+         return data[i];
+      }
+
+      public void set(int i, int v)
+      {
+         data[i] = v;
+      }
+
+      public void add(int v)
+      {
+         if (size == data.length)
+         {
+            data = Arrays.copyOf(data, size * 2);
+         }
+         data[size++] = v;
+      }
+
+      public void clear()
+      {
+         size = 0;
+      }
+
+      public int[] toArray()
+      {
+         return Arrays.copyOf(data, size);
+      }
+   }
+
+   // Moves of the elements of a list that are not done yet. add(i, d)
+   // moves the elements from i on by d, shift(i) is what element i has
+   // to move. Both take time in proportion to the log of the length,
+   // the moves are kept in a Fenwick tree.
+   static public class ShiftTree
+   {
+      private int[]   tree  = new int[1];  // tree[k] covers the elements before k
+      private boolean empty = true;
+
+      public boolean isEmpty()
+      {
+         return empty;
+      }
+
+      // n is the length of the list, it can only grow while no moves are kept
+      public void add(int i, int d, int n)
+      {
+         if (tree.length < n + 1)
+         {
+            if (!empty)
+            {
+               throw new IllegalStateException("list grew with moves to do");
+            }
+            tree = new int[n + 1];
+         }
+         for (int k=i + 1; k < tree.length; k += k & -k)
+         {
+            tree[k] += d;
+         }
+         empty = false;
+      }
+
+      public int shift(int i)
+      {
+         int s = 0;
+         for (int k=Math.min(i + 1, tree.length - 1); k > 0; k -= k & -k)
+         {
+            s += tree[k];
+         }
+         return s;
+      }
+
+      // Turns the tree into the moves of all elements, the move of
+      // element i is in [i + 1]. Takes time in proportion to the length,
+      // clear() has to follow.
+      public int[] take()
+      {
+         int m = tree.length - 1;
+         for (int k=m; k > 0; k--)
+         {
+            int j = k + (k & -k);
+            if (j <= m)
+            {
+               tree[j] -= tree[k];
+            }
+         }
+         for (int k=2; k <= m; k++)
+         {
+            tree[k] += tree[k - 1];
+         }
+         return tree;
+      }
+
+      public void clear()
+      {
+         if (!empty)
+         {
+            Arrays.fill(tree, 0);
+            empty = true;
+         }
+      }
+   }
+
    static public abstract class AVoice extends HContainer
    {
-      public int getBarSize()
+      // The positions of the bars and barlines among the elements.
+      // add() keeps them up to date while parsing,
+      // after set() or remove() they are built again when needed.
+      private IntList bars     = new IntList();
+      private IntList barlines = new IntList();
+      private boolean indexok  = true;
+
+      @Override
+      public void add(SElement el)
       {
-         int n = 0;
-         
-         for (int i=0; i<size(); i++)
+         super.add(el);
+         if (indexok)
+         {
+            addIndex(el, size() - 1);
+         }
+      }
+
+      @Override
+      public void set(int i, SElement el)
+      {
+         super.set(i, el);
+         indexok = false;
+      }
+
+      @Override
+      public SElement remove(int i)
+      {
+         indexok = false;
+         return super.remove(i);
+      }
+
+      private void addIndex(SElement el, int i)
+      {
+         if (el instanceof Bar)
+         {
+            bars.add(i);
+         }
+         else
+         if (el instanceof Barline)
+         {
+            barlines.add(i);
+         }
+      }
+
+      private void index()
+      {
+         if (!indexok)
          {
-            SElement el = get(i);
-            if (el instanceof Bar)
+            bars.clear();
+            barlines.clear();
+            for (int i=0; i < size(); i++)
             {
-               n++;
+               addIndex(get(i), i);
             }
+            indexok = true;
          }
-         
-         return n;
       }
 
+      public int getBarSize()
+      {
+         index();
+         return bars.size();
+      }
+
+      // bar i of the voice, counting from 0
       public SElement getBar(int i)
       {
-         if (i >= getBarSize())
+         index();
+         if (i < 0 || i >= bars.size())
          {
             return null;
          }
-         
-         int k = 0;
-         for (int j=0; j<size(); j++)
+         return get(bars.get(i));
+      }
+
+      // position of bar i among the elements of the voice
+      public int getBarIndex(int i)
+      {
+         index();
+         return bars.get(i);
+      }
+
+      public int getBarlineSize()
+      {
+         index();
+         return barlines.size();
+      }
+
+      public SElement getBarline(int i)
+      {
+         index();
+         if (i < 0 || i >= barlines.size())
          {
-            SElement el = get(j);
-            if (el instanceof Bar)
-            {
-               k++;
-               if (k == i)
-               {
-                  return el;
-               }
-            }
+            return null;
          }
-         
-         return null;
+         return get(barlines.get(i));
+      }
+
+      public int getBarlineIndex(int i)
+      {
+         index();
+         return barlines.get(i);
       }
    }
 
@@ -1066,7 +2309,7 @@ public class CNotation2SVG
       }
 
       @Override 
-      public void calcLayout(int d, Graphics g)
+      public void calcLayout(int d, FontRenderContext frc, RenderConfig rc)
       {
          if (isLok())
          {
@@ -1074,18 +2317,19 @@ public class CNotation2SVG
          }
          setLok(true);
 
-         Indent.indent(d);
-         System.out.println("Voice.calcLayout() #"  + getNr());
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(d, "Voice.calcLayout() #"  + getNr());
+         }
 
-         root.calcLayout(d + 1, g);
+         root.calcLayout(d + 1, frc, rc);
       }
 
 
       @Override
       public void show(int d)
       {
-         Indent.indent(d);
-         System.out.println("Voice #" + getNr() + " " + getX() + " " + getY() + " " + getBaseline() + " " + getW() + "x" + getH());
+         Trace.println(d, "Voice #" + getNr() + " " + getX() + " " + getY() + " " + getBaseline() + " " + getW() + "x" + getH());
          root.show(d + 1);
       }
    }
@@ -1098,13 +2342,12 @@ public class CNotation2SVG
       
       public void show(int d)
       {
-         Indent.indent(d);
-         System.out.println("Score #" + getNr() + " " + getX() + " " + getY() + " " + getBaseline() + " " + getW() + "x" + getH());
+         Trace.println(d, "Score #" + getNr() + " " + getX() + " " + getY() + " " + getBaseline() + " " + getW() + "x" + getH());
          root.show(d + 1);
       }
 
       @Override 
-      public void calcLayout(int d, Graphics g)
+      public void calcLayout(int d, FontRenderContext frc, RenderConfig rc)
       {
          if (isLok())
          {
@@ -1112,303 +2355,4043 @@ public class CNotation2SVG
          }
          setLok(true);
 
-         Indent.indent(d);
-         System.out.println("Score.calcLayout() #"  + getNr());
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(d, "Score.calcLayout() #"  + getNr());
+         }
 
-         root.calcLayout(d + 1, g);
+         root.calcLayout(d + 1, frc, rc);
          setW(root.getW());
          setH(root.getH());
       }
 
 
-      synchronized public void draw(Graphics g)
-      {
-         if (root != null)
-         {
-            System.out.println("----- Score.calcLayout() ----------");
-            //root.calcLayout(0, g);
-            calcLayout(0, g);
-            System.out.println("----- Score.calcLayout() end ----------");
-            root.draw(0, 0, g);
-            show(0);
-         }
-      }
-   }
-   
-//  ----------------- Swing -------------------   
-   
-   public class CNotationPanel extends JPanel
-   {
-      private Score score;
-      
-      CNotationPanel(Score sc)
-      {
-         score = sc;
-      }
+      // the metrics of SVGGraphics2D, also used for the SVGWriter
+      static private final FontRenderContext svgfrc = new SVGGraphics2D(1, 1).getFontRenderContext();
 
-    	public void paint(Graphics g)
-    	{
-    		score.draw(g);
-    	}
-   }
-   
+      // The font render context and config of the last layout,
+      // layoutfrc is null as long as the score is not laid out.
+      private volatile FontRenderContext layoutfrc = null;
+      private volatile RenderConfig      layoutrc  = RenderConfig.DEFAULT;
 
-// ----------------- parse -----------------------   
-   
-   static public class ParseException extends Exception
-   {
-      private String text;
-      
-      public ParseException()
+      // index of the last layout, built when it is first needed
+      private SpatialIndex index = null;
+
+      public Rectangle layout(FontRenderContext frc)
       {
-         text = "";
+         return layout(frc, layoutrc);
       }
 
-      public ParseException(String te)
+      // Measures the score for the given font render context and config
+      // and returns its bounds. Afterwards the score can be drawn any
+      // number of times, into any Graphics, without a new layout.
+      // A score has one layout at a time. draw(Graphics), toSVG() and
+      // writeSVG() lay out and draw while holding the lock of the score,
+      // so renders of one score at different sizes take turns.
+      synchronized public Rectangle layout(FontRenderContext frc, RenderConfig rc)
       {
-         text = te;
+         if (layoutfrc != null && (!layoutfrc.equals(frc) || !layoutrc.equals(rc)))
+         {
+            clearLok();
+         }
+
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(0, "----- Score.calcLayout() ----------");
+         }
+         calcLayout(0, frc, rc);
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(0, "----- Score.calcLayout() end ----------");
+         }
+         layoutfrc = frc;
+         layoutrc  = rc;
+         index = null;
+         
+         return new Rectangle(0, 0, getW(), getH());
       }
-      
-      public String toString()
+
+      // The same layout with the voices laid out in parallel on pool,
+      // the alignment of the bar columns is still done by one thread.
+      // Without a pool this is layout(frc, rc).
+      public Rectangle layout(FontRenderContext frc, RenderConfig rc, ForkJoinPool pool)
       {
-         return "ParseException " + text;
+         return layout(frc, pool == null ? rc : rc.withLayoutPool(pool));
       }
-   }
-   
-   static public class ParseText
-   {
-      private String text;
-      
-      public ParseText(String te)
+
+      public boolean isLaidOut()
       {
-         text = te;
+         return layoutfrc != null;
       }
-      
-      public boolean empty()
+
+      // the config of the last layout
+      public RenderConfig getConfig()
       {
-         return text.length() == 0;
+         return layoutrc;
       }
 
-      public char get() throws ParseException
+      // Lays out with frc when the score was not laid out yet.
+      // After a change only the invalidated elements are laid out again,
+      // with the font render context of the first layout.
+      public void ensureLayout(FontRenderContext frc)
       {
-         if (text.length() > 0)
+         FontRenderContext lfrc = layoutfrc;
+         if (lfrc == null)
          {
-            return text.charAt(0);
+            layout(frc);
          }
          else
+         if (!isLok())
          {
-            throw new ParseException("at get");
+            layout(lfrc);
          }
       }
-      
-      public boolean startsWith(String te)
+
+      // lays out with frc and rc unless that is the current layout
+      public void ensureLayout(FontRenderContext frc, RenderConfig rc)
       {
-         return text.startsWith(te);
+         if (!frc.equals(layoutfrc) || !rc.equals(layoutrc) || !isLok())
+         {
+            layout(frc, rc);
+         }
       }
-        
-      public void next() throws ParseException
+
+      // The index of the current layout. The score is laid out first
+      // if that did not happen yet or if it was changed.
+      synchronized public SpatialIndex getIndex()
       {
-         if (text.startsWith("\\score"))
+         ensureLayout(svgfrc);
+         if (index == null)
          {
-            text = text.substring(6);
+            index = new SpatialIndex(root);
+         }
+         return index;
+      }
+
+      // the innermost element at x, y or null
+      public SElement elementAt(int x, int y)
+      {
+         return getIndex().elementAt(x, y);
+      }
+
+      // draws the score, it is only laid out first if that
+      // did not happen yet or if it was changed
+      synchronized public void draw(Graphics g)
+      {
+         ensureLayout(((Graphics2D) g).getFontRenderContext());
+         GraphicsPainter p = new GraphicsPainter((Graphics2D) g, layoutrc);
+         Rectangle clip = g.getClipBounds();
+         if (clip != null && !clip.contains(0, 0, getW(), getH()))
+         {
+            draw(p, clip);
+         }
+         else
+         {
+            draw(p);
+         }
+         p.restore();
+      }
+
+      // Draws only the elements of the laid out score inside clip.
+      // The caller makes sure the layout does not change meanwhile.
+      public void draw(Painter p, Rectangle clip)
+      {
+         if (root != null)
+         {
+            getIndex().draw(clip, p);
+            if (Trace.on(Trace.TREE))
+            {
+               show(0);
+            }
+         }
+      }
+
+      // draws the laid out score
+      public void draw(Painter p)
+      {
+         if (root != null)
+         {
+            root.draw(0, 0, p);
+            if (Trace.on(Trace.TREE))
+            {
+               show(0);
+            }
+         }
+      }
+
+      // draws the score into a new SVG document of its own size
+      synchronized public String toSVG()
+      {
+         ensureLayout(svgfrc);
+         SVGGraphics2D g2 = new SVGGraphics2D(getW(), getH());
+         draw(g2);
+         return g2.getSVGElement();
+      }
+
+      synchronized public String toSVG(RenderConfig rc)
+      {
+         ensureLayout(svgfrc, rc);
+         return toSVG();
+      }
+
+      // streams the score as SVG without building it in memory first
+      synchronized public void writeSVG(Writer out) throws IOException
+      {
+         ensureLayout(svgfrc);
+         SVGWriter sw = new SVGWriter(out, layoutrc);
+         sw.begin(getW(), getH());
+         draw(sw);
+         sw.end();
+      }
+
+      synchronized public void writeSVG(Writer out, RenderConfig rc) throws IOException
+      {
+         ensureLayout(svgfrc, rc);
+         writeSVG(out);
+      }
+   }
+   
+   // The same score as the Score tree in parallel arrays, one entry per
+   // element instead of an object, so a large score takes a fraction of
+   // the memory and leaves nothing for the collector to trace.
+   // The elements are stored in preorder and children are linked by
+   // first and next. The root groups of the containers are left out,
+   // the children of a Line have their y relative to the Line.
+   // Layout and output give the same result as the tree, only the
+   // element borders are not drawn. A FlatScore is filled by the
+   // FlatParser or BinaryScore.readFlat() and cannot be edited.
+   static public class FlatScore
+   {
+      static public final byte SCORE   = 0;
+      static public final byte VOICE   = 1;
+      static public final byte BAR     = 2;
+      static public final byte LINE    = 3;
+      static public final byte NOTE    = 4;
+      static public final byte BARLINE = 5;
+
+      private int    n = 0;
+      private byte[] kind;
+      private int[]  parent;
+      private int[]  first;     // first child or -1
+      private int[]  next;      // next sibling or -1
+      private int[]  x;         // relative to the parent
+      private int[]  y;
+      private int[]  w;
+      private int[]  h;
+      private int[]  baseline;
+      private char[] chars;     // the character of a note
+
+      // the font render context and config of the last layout
+      private FontRenderContext layoutfrc = null;
+      private RenderConfig      layoutrc  = RenderConfig.DEFAULT;
+      private GlyphMetrics[]    glyphs    = new GlyphMetrics[256];  // of the last layout, by character
+
+      public FlatScore(int capacity)
+      {
+         capacity = Math.max(capacity, 1);
+         kind     = new byte[capacity];
+         parent   = new int[capacity];
+         first    = new int[capacity];
+         next     = new int[capacity];
+         x        = new int[capacity];
+         y        = new int[capacity];
+         w        = new int[capacity];
+         h        = new int[capacity];
+         baseline = new int[capacity];
+         chars    = new char[capacity];
+      }
+
+      private void resize(int capacity)
+      {
+         kind     = Arrays.copyOf(kind,     capacity);
+         parent   = Arrays.copyOf(parent,   capacity);
+         first    = Arrays.copyOf(first,    capacity);
+         next     = Arrays.copyOf(next,     capacity);
+         x        = Arrays.copyOf(x,        capacity);
+         y        = Arrays.copyOf(y,        capacity);
+         w        = Arrays.copyOf(w,        capacity);
+         h        = Arrays.copyOf(h,        capacity);
+         baseline = Arrays.copyOf(baseline, capacity);
+         chars    = Arrays.copyOf(chars,    capacity);
+      }
+
+      // Adds an element of kind k as the child of pa after prev,
+      // prev is -1 for the first child. Returns the new element.
+      public int add(byte k, int pa, int prev, char c)
+      {
+         if (n == kind.length)
+         {
+            resize(n + n/2 + 1);
+         }
+         int i = n++;
+         kind[i]   = k;
+         parent[i] = pa;
+         first[i]  = -1;
+         next[i]   = -1;
+         chars[i]  = c;
+         if (prev >= 0)
+         {
+            next[prev] = i;
+         }
+         else
+         if (pa >= 0)
+         {
+            first[pa] = i;
+         }
+         return i;
+      }
+
+      // drops the unused capacity after parsing if that is worth a copy
+      public void trim()
+      {
+         if (n < kind.length - kind.length/4)
+         {
+            resize(n);
+         }
+      }
+
+      public int size()
+      {
+         return n;
+      }
+
+      public byte getKind(int i)
+      {
+         return kind[i];
+      }
+
+      public int getParent(int i)
+      {
+         return parent[i];
+      }
+
+      public int getFirst(int i)
+      {
+         return first[i];
+      }
+
+      public int getNext(int i)
+      {
+         return next[i];
+      }
+
+      public int getX(int i)
+      {
+         return x[i];
+      }
+
+      public int getY(int i)
+      {
+         return y[i];
+      }
+
+      public int getW(int i)
+      {
+         return w[i];
+      }
+
+      public int getH(int i)
+      {
+         return h[i];
+      }
+
+      public int getBaseline(int i)
+      {
+         return baseline[i];
+      }
+
+      public char getChar(int i)
+      {
+         return chars[i];
+      }
+
+      public int getW()
+      {
+         return n > 0 ? w[0] : 0;
+      }
+
+      public int getH()
+      {
+         return n > 0 ? h[0] : 0;
+      }
+
+      // Lays out all elements. Children come after their parent, so
+      // one pass from the end sees every child before its parent.
+      public Rectangle layout(FontRenderContext frc)
+      {
+         return layout(frc, layoutrc);
+      }
+
+      synchronized public Rectangle layout(FontRenderContext frc, RenderConfig rc)
+      {
+         Font           font = rc.getFont();
+         GlyphMetrics[] gms  = new GlyphMetrics[glyphs.length];
+         for (int i = n - 1; i >= 0; i--)
+         {
+            switch (kind[i])
+            {
+               case NOTE:
+                  GlyphMetrics gm = metrics(gms, font, chars[i], frc);
+                  w[i]        = (int) gm.getWidth();
+                  h[i]        = (int) (gm.getDescent() + gm.getAscent());
+                  baseline[i] = (int) gm.getAscent();
+                  break;
+               case BARLINE:
+                  w[i] = rc.getBarlinewidth();
+                  break;
+               case SCORE:
+                  layoutColumns(i);
+                  break;
+               default:
+                  layoutRow(i, kind[i] == LINE ? rc.getLineheight() : 0);
+            }
+         }
+         layoutfrc = frc;
+         layoutrc  = rc;
+         glyphs    = gms;
+         return new Rectangle(0, 0, getW(), getH());
+      }
+
+      // The metrics of c from the table of one layout, a character is
+      // looked up in the GlyphCache only the first time. Characters
+      // past the table are looked up every time.
+      static private GlyphMetrics metrics(GlyphMetrics[] table, Font font, char c, FontRenderContext frc)
+      {
+         if (c >= table.length)
+         {
+            return GlyphCache.getMetrics(font, c, frc);
+         }
+         GlyphMetrics gm = table[c];
+         if (gm == null)
+         {
+            gm = GlyphCache.getMetrics(font, c, frc);
+            table[c] = gm;
+         }
+         return gm;
+      }
+
+      // like HGroup: side by side on the highest baseline,
+      // top is the room above the children
+      private void layoutRow(int i, int top)
+      {
+         int ww  = 0;
+         int hh  = 0;
+         int bsl = 0;
+         for (int c = first[i]; c >= 0; c = next[c])
+         {
+            x[c] = ww;
+            ww += w[c];
+            if (kind[c] != BARLINE)
+            {
+               hh  = Math.max(hh, h[c]);
+               bsl = Math.max(bsl, baseline[c]);
+            }
+         }
+         for (int c = first[i]; c >= 0; c = next[c])
+         {
+            if (kind[c] != BARLINE)
+            {
+               y[c] = top + bsl - baseline[c];
+            }
+            else
+            {
+               y[c] = top;
+               h[c] = hh;
+            }
+         }
+         w[i]        = ww;
+         h[i]        = top + hh;
+         baseline[i] = top + bsl;
+      }
+
+      // like VGroup: the voices below each other,
+      // the elements of all voices aligned in columns
+      private void layoutColumns(int i)
+      {
+         int hh = 0;
+         int si = 0;
+         for (int v = first[i]; v >= 0; v = next[v])
+         {
+            x[v] = 0;
+            y[v] = hh;
+            hh += h[v];
+            int k = 0;
+            for (int c = first[v]; c >= 0; c = next[c])
+            {
+               k++;
+            }
+            si = Math.max(si, k);
+         }
+
+         int[] cw = new int[si];
+         for (int v = first[i]; v >= 0; v = next[v])
+         {
+            int k = 0;
+            for (int c = first[v]; c >= 0; c = next[c])
+            {
+               cw[k] = Math.max(cw[k], w[c]);
+               k++;
+            }
+         }
+         int[] cx = new int[si + 1];
+         for (int k = 0; k < si; k++)
+         {
+            cx[k + 1] = cx[k] + cw[k];
+         }
+
+         for (int v = first[i]; v >= 0; v = next[v])
+         {
+            int k = 0;
+            for (int c = first[v]; c >= 0; c = next[c])
+            {
+               x[c] = cx[k];
+               if (kind[c] == BAR)
+               {
+                  w[c] = cw[k];
+               }
+               k++;
+            }
+         }
+         w[i]        = cx[si];
+         h[i]        = hh;
+         baseline[i] = 0;
+      }
+
+      // draws the laid out score
+      public void draw(Painter p)
+      {
+         if (n > 0)
+         {
+            draw(0, 0, 0, layoutrc.getFont(), p);
+         }
+      }
+
+      // Draws element i and its children in the order of the tree of
+      // a Score. With a border the tree draws the box of a container
+      // and then the box of its root group: of the same size, but below
+      // the line of a LINE, and as wide as the children in a BAR that
+      // got the width of its column.
+      private void draw(int i, int dx, int dy, Font font, Painter p)
+      {
+         boolean border = p.getConfig().hasBorder();
+         int     top    = 0;
+         if (border && kind[i] != SCORE)
+         {
+            drawBorder(dx + x[i], dy + y[i], w[i], h[i], p);
+         }
+         switch (kind[i])
+         {
+            case NOTE:
+               float ascent = metrics(glyphs, font, chars[i], layoutfrc).getAscent();
+               p.glyph(chars[i], dx + x[i], dy + y[i] + ascent);
+               if (border)
+               {
+                  p.hairline(dx + x[i], (int)(dy + y[i] + ascent), dx + x[i] + w[i], (int)(dy + y[i] + ascent));
+               }
+               break;
+            case BARLINE:
+               p.stroke(dx + x[i] + w[i]/2, dy + y[i], 
+                        dx + x[i] + w[i]/2, dy + y[i] + h[i]);
+               break;
+            case LINE:
+               int hline = layoutrc.getLineheight();
+               int marge = layoutrc.getLinemarge();
+               p.stroke(dx + x[i] + marge, dy + y[i] + hline/2, 
+                        dx + x[i] + w[i] - marge, dy + y[i] + hline/2);
+               top = hline;
+               break;
+         }
+         if (border && kind[i] != NOTE && kind[i] != BARLINE)
+         {
+            int ww = w[i];
+            if (kind[i] == BAR)
+            {
+               ww = 0;
+               for (int c = first[i]; c >= 0; c = next[c])
+               {
+                  ww += w[c];
+               }
+            }
+            drawBorder(dx + x[i], dy + y[i] + top, ww, h[i] - top, p);
+         }
+         int ox = dx + x[i];
+         int oy = dy + y[i];
+         for (int c = first[i]; c >= 0; c = next[c])
+         {
+            // the bars of a voice reach past its width, like VGroup
+            // the voices are always drawn
+            if (kind[i] == SCORE || p.visible(ox + x[c], oy + y[c], w[c], h[c]))
+            {
+               draw(c, ox, oy, font, p);
+            }
+         }
+      }
+
+      // like SElement.drawBorder()
+      static private void drawBorder(int xx, int yy, int ww, int hh, Painter p)
+      {
+         p.hairline(xx,      yy,      xx + ww, yy);
+         p.hairline(xx + ww, yy,      xx + ww, yy + hh);
+         p.hairline(xx + ww, yy + hh, xx,      yy + hh);
+         p.hairline(xx,      yy + hh, xx,      yy);
+      }
+
+      // draws the score into a new SVG document of its own size
+      public String toSVG()
+      {
+         return toSVG(layoutrc);
+      }
+
+      synchronized public String toSVG(RenderConfig rc)
+      {
+         layout(Score.svgfrc, rc);
+         SVGGraphics2D g2 = new SVGGraphics2D(getW(), getH());
+         draw(new GraphicsPainter(g2, rc));
+         return g2.getSVGElement();
+      }
+
+      // streams the score as SVG
+      public void writeSVG(Writer out) throws IOException
+      {
+         writeSVG(out, layoutrc);
+      }
+
+      synchronized public void writeSVG(Writer out, RenderConfig rc) throws IOException
+      {
+         layout(Score.svgfrc, rc);
+         SVGWriter sw = new SVGWriter(out, rc);
+         sw.begin(getW(), getH());
+         draw(sw);
+         sw.end();
+      }
+   }
+   
+   // Packed R-tree over the absolute bounds of all elements of a
+   // laid out tree. The elements are kept in draw order (preorder), so
+   // the elements found for a clip rectangle can be drawn one by one
+   // with drawSelf() and give the same picture as the full tree walk.
+   // A query takes O(log n + k) for k elements found.
+   // The index belongs to one layout, after a change it is built again.
+   static public class SpatialIndex
+   {
+      static private final int fan = 16;   // entries per node
+
+      private int        n;
+      private SElement[] els;      // in preorder
+      private int[]      ox;       // absolute origin of the parent
+      private int[]      oy;
+      private int[]      depth;
+
+      // Level 0 holds the elements in STR order, every node of level
+      // k+1 covers fan entries of level k, the last level is the root.
+      private int[]      order;    // element of each level 0 entry
+      private int[][]    lx1;
+      private int[][]    ly1;
+      private int[][]    lx2;
+      private int[][]    ly2;
+
+      public SpatialIndex(SElement root)
+      {
+         ArrayList<SElement> list   = new ArrayList<SElement>();
+         IntList             lox    = new IntList();
+         IntList             loy    = new IntList();
+         IntList             ldepth = new IntList();
+         collect(root, 0, 0, 0, list, lox, loy, ldepth);
+
+         n     = list.size();
+         els   = list.toArray(new SElement[n]);
+         ox    = lox.toArray();
+         oy    = loy.toArray();
+         depth = ldepth.toArray();
+         build();
+      }
+
+      static private void collect(SElement el, int dx, int dy, int d, ArrayList<SElement> list, IntList lox, IntList loy, IntList ldepth)
+      {
+         list.add(el);
+         lox.add(dx);
+         loy.add(dy);
+         ldepth.add(d);
+
+         // the index draws with the x of the elements themselves,
+         // so the moves still to do are done now
+         if (el.isStaleX())
+         {
+            el.settle();
+         }
+         int cx = dx + el.getX();
+         int cy = dy + el.getY();
+         if (el instanceof Container)
+         {
+            collect(((Container) el).getRoot(), cx, cy, d + 1, list, lox, loy, ldepth);
+         }
+         else
+         {
+            for (int i = 0; i < el.size(); i++)
+            {
+               collect(el.get(i), cx, cy, d + 1, list, lox, loy, ldepth);
+            }
+         }
+      }
+
+      private void build()
+      {
+         int[] x1 = new int[n];
+         int[] y1 = new int[n];
+         for (int i = 0; i < n; i++)
+         {
+            x1[i] = ox[i] + els[i].getX();
+            y1[i] = oy[i] + els[i].getY();
+         }
+
+         // Sort-Tile-Recursive: sort on the centre x, cut in vertical
+         // slices and sort every slice on the centre y.
+         // The key is in the high half, the element in the low half.
+         long[] keys = new long[n];
+         for (int i = 0; i < n; i++)
+         {
+            keys[i] = ((long) (2*x1[i] + els[i].getW()) << 32) | i;
+         }
+         Arrays.sort(keys);
+
+         int leaves = (n + fan - 1) / fan;
+         int per    = (int) Math.ceil(Math.sqrt(leaves)) * fan;
+         for (int s = 0; s < n; s += per)
+         {
+            int e = Math.min(n, s + per);
+            for (int i = s; i < e; i++)
+            {
+               int k = (int) keys[i];
+               keys[i] = ((long) (2*y1[k] + els[k].getH()) << 32) | k;
+            }
+            Arrays.sort(keys, s, e);
+         }
+
+         order = new int[n];
+         ArrayList<int[]> bx1 = new ArrayList<int[]>();
+         ArrayList<int[]> by1 = new ArrayList<int[]>();
+         ArrayList<int[]> bx2 = new ArrayList<int[]>();
+         ArrayList<int[]> by2 = new ArrayList<int[]>();
+         int[] ax1 = new int[n];
+         int[] ay1 = new int[n];
+         int[] ax2 = new int[n];
+         int[] ay2 = new int[n];
+         for (int i = 0; i < n; i++)
+         {
+            int k = (int) keys[i];
+            order[i] = k;
+            ax1[i] = x1[k];
+            ay1[i] = y1[k];
+            ax2[i] = x1[k] + els[k].getW();
+            ay2[i] = y1[k] + els[k].getH();
+         }
+         bx1.add(ax1);
+         by1.add(ay1);
+         bx2.add(ax2);
+         by2.add(ay2);
+
+         // the upper levels
+         while (ax1.length > 1)
+         {
+            int   m   = (ax1.length + fan - 1) / fan;
+            int[] nx1 = new int[m];
+            int[] ny1 = new int[m];
+            int[] nx2 = new int[m];
+            int[] ny2 = new int[m];
+            for (int j = 0; j < m; j++)
+            {
+               int s = j * fan;
+               int e = Math.min(ax1.length, s + fan);
+               nx1[j] = ax1[s];
+               ny1[j] = ay1[s];
+               nx2[j] = ax2[s];
+               ny2[j] = ay2[s];
+               for (int i = s + 1; i < e; i++)
+               {
+                  nx1[j] = Math.min(nx1[j], ax1[i]);
+                  ny1[j] = Math.min(ny1[j], ay1[i]);
+                  nx2[j] = Math.max(nx2[j], ax2[i]);
+                  ny2[j] = Math.max(ny2[j], ay2[i]);
+               }
+            }
+            ax1 = nx1;
+            ay1 = ny1;
+            ax2 = nx2;
+            ay2 = ny2;
+            bx1.add(ax1);
+            by1.add(ay1);
+            bx2.add(ax2);
+            by2.add(ay2);
+         }
+
+         lx1 = bx1.toArray(new int[0][]);
+         ly1 = by1.toArray(new int[0][]);
+         lx2 = bx2.toArray(new int[0][]);
+         ly2 = by2.toArray(new int[0][]);
+      }
+
+      public int size()
+      {
+         return n;
+      }
+
+      // adds the elements of the subtree of node i on level lv
+      // that touch the rectangle qx1,qy1 - qx2,qy2
+      private void search(int lv, int i, int qx1, int qy1, int qx2, int qy2, IntList found)
+      {
+         if (lx2[lv][i] < qx1 || lx1[lv][i] > qx2 || ly2[lv][i] < qy1 || ly1[lv][i] > qy2)
+         {
+            return;
+         }
+         if (lv == 0)
+         {
+            found.add(order[i]);
+            return;
+         }
+         int s = i * fan;
+         int e = Math.min(lx1[lv - 1].length, s + fan);
+         for (int j = s; j < e; j++)
+         {
+            search(lv - 1, j, qx1, qy1, qx2, qy2, found);
+         }
+      }
+
+      // the elements touching r, in draw order
+      private int[] find(int qx1, int qy1, int qx2, int qy2)
+      {
+         IntList found = new IntList();
+         search(lx1.length - 1, 0, qx1, qy1, qx2, qy2, found);
+         int[] f = found.toArray();
+         Arrays.sort(f);
+         return f;
+      }
+
+      // the elements whose bounds intersect r, in draw order
+      public List<SElement> query(Rectangle r)
+      {
+         ArrayList<SElement> list = new ArrayList<SElement>();
+         for (int k: find(r.x, r.y, r.x + r.width, r.y + r.height))
+         {
+            list.add(els[k]);
+         }
+         return list;
+      }
+
+      // draws the elements that can be seen in clip
+      public void draw(Rectangle clip, Painter p)
+      {
+         int m = p.getConfig().getClipmarge();
+         for (int k: find(clip.x - m, clip.y - m, clip.x + clip.width + m, clip.y + clip.height + m))
+         {
+            els[k].drawSelf(ox[k], oy[k], p);
+         }
+      }
+
+      // the deepest element containing x, y, null if there is none
+      public SElement elementAt(int x, int y)
+      {
+         int best = -1;
+         for (int k: find(x, y, x, y))
+         {
+            int ex = ox[k] + els[k].getX();
+            int ey = oy[k] + els[k].getY();
+            if (x < ex + els[k].getW() && y < ey + els[k].getH() &&
+                (best < 0 || depth[k] >= depth[best]))
+            {
+               best = k;
+            }
+         }
+         return best < 0 ? null : els[best];
+      }
+   }
+   
+// ----------------- output -----------------------   
+
+   // The draw methods of the elements paint through this interface,
+   // so the same tree walk serves Graphics2D and the SVGWriter.
+   static public interface Painter
+   {
+      // draws character c with its baseline at y
+      void glyph(char c, float x, float y);
+
+      // draws a line with the stroke of the config
+      void stroke(int x1, int y1, int x2, int y2);
+
+      // draws a thin line, used for the element borders
+      void hairline(int x1, int y1, int x2, int y2);
+
+      // false if nothing drawn inside this rectangle can be seen,
+      // the element is then not drawn at all
+      boolean visible(int x, int y, int w, int h);
+
+      // the sizes and font to draw with
+      RenderConfig getConfig();
+   }
+
+   // Draws into a Graphics2D. The font and stroke are only set when
+   // they change, the hairlines use the stroke the Graphics2D had at
+   // the start, restore() sets that stroke and font back.
+   static public class GraphicsPainter implements Painter
+   {
+      private Graphics2D   g2;
+      private RenderConfig rc;
+      private final Font   basefont;
+      private final Stroke basestroke;
+      private Font         font;      // as set in g2
+      private Stroke       stroke;
+
+      public GraphicsPainter(Graphics2D g)
+      {
+         this(g, RenderConfig.DEFAULT);
+      }
+
+      public GraphicsPainter(Graphics2D g, RenderConfig c)
+      {
+         g2         = g;
+         rc         = c;
+         basefont   = g.getFont();
+         basestroke = g.getStroke();
+         font       = basefont;
+         stroke     = basestroke;
+      }
+
+      public void restore()
+      {
+         setFont(basefont);
+         setStroke(basestroke);
+      }
+
+      private void setFont(Font f)
+      {
+         if (font != f)
+         {
+            g2.setFont(f);
+            font = f;
+         }
+      }
+
+      private void setStroke(Stroke s)
+      {
+         if (stroke != s)
+         {
+            g2.setStroke(s);
+            stroke = s;
+         }
+      }
+
+      @Override
+      public RenderConfig getConfig()
+      {
+         return rc;
+      }
+
+      @Override
+      public void glyph(char c, float x, float y)
+      {
+         setFont(rc.getFont());
+         g2.drawString(GlyphCache.text(c), x, y);
+      }
+
+      @Override
+      public void stroke(int x1, int y1, int x2, int y2)
+      {
+         setStroke(rc.getStroke());
+         g2.drawLine(x1, y1, x2, y2);
+      }
+
+      @Override
+      public void hairline(int x1, int y1, int x2, int y2)
+      {
+         setStroke(basestroke);
+         g2.drawLine(x1, y1, x2, y2);
+      }
+
+      @Override
+      public boolean visible(int x, int y, int w, int h)
+      {
+         int m = rc.getClipmarge();
+         return g2.hitClip(x - m, y - m, w + 2*m, h + 2*m);
+      }
+   }
+
+   // Moves everything drawn through it by dx, dy.
+   static public class OffsetPainter implements Painter
+   {
+      private Painter p;
+      private int     dx;
+      private int     dy;
+
+      public OffsetPainter(Painter pp, int ddx, int ddy)
+      {
+         p  = pp;
+         dx = ddx;
+         dy = ddy;
+      }
+
+      @Override
+      public RenderConfig getConfig()
+      {
+         return p.getConfig();
+      }
+
+      @Override
+      public void glyph(char c, float x, float y)
+      {
+         p.glyph(c, x + dx, y + dy);
+      }
+
+      @Override
+      public void stroke(int x1, int y1, int x2, int y2)
+      {
+         p.stroke(x1 + dx, y1 + dy, x2 + dx, y2 + dy);
+      }
+
+      @Override
+      public void hairline(int x1, int y1, int x2, int y2)
+      {
+         p.hairline(x1 + dx, y1 + dy, x2 + dx, y2 + dy);
+      }
+
+      @Override
+      public boolean visible(int x, int y, int w, int h)
+      {
+         return p.visible(x + dx, y + dy, w, h);
+      }
+   }
+
+   // Writes compact SVG straight to a Writer while the tree is drawn.
+   // Every character is defined once and placed with <use>,
+   // the lines refer to a CSS class instead of repeating their style.
+   // Write errors are kept and thrown by end(), like a PrintWriter.
+   static public class SVGWriter implements Painter
+   {
+      private Writer                      out;
+      private RenderConfig                rc;
+      private IOException                 error  = null;
+      private HashMap<Character, Integer> glyphs = new HashMap<Character, Integer>();
+      private final int[]                 ascii  = new int[128];   // id + 1 of each glyph, 0 if none
+      private final char[]                digits = new char[20];
+
+      public SVGWriter(Writer wr)
+      {
+         this(wr, RenderConfig.DEFAULT);
+      }
+
+      public SVGWriter(Writer wr, RenderConfig c)
+      {
+         out = wr;
+         rc  = c;
+      }
+
+      @Override
+      public RenderConfig getConfig()
+      {
+         return rc;
+      }
+
+      public void begin(int w, int h)
+      {
+         write("<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" width=\"");
+         write(Integer.toString(w));
+         write("\" height=\"");
+         write(Integer.toString(h));
+         write("\">\n<style>.s{stroke:#000;stroke-width:");
+         number(rc.getLinestroke());
+         write(";stroke-linecap:square}.h{stroke:#000}text{font-family:");
+         write(rc.getFontname().toLowerCase());
+         write(";font-size:");
+         write(Integer.toString(rc.getPtsize()));
+         write("px}</style>\n");
+      }
+
+      public void end() throws IOException
+      {
+         write("</svg>\n");
+         if (error == null)
+         {
+            try
+            {
+               out.flush();
+            }
+            catch (IOException e)
+            {
+               error = e;
+            }
+         }
+         if (error != null)
+         {
+            throw error;
+         }
+      }
+
+      @Override
+      public void glyph(char c, float x, float y)
+      {
+         int id = glyphId(c);
+         if (id < 0)
+         {
+            id = glyphs.size();
+            glyphs.put(c, id);
+            if (c < ascii.length)
+            {
+               ascii[c] = id + 1;
+            }
+            write("<defs><text id=\"g");
+            number(id);
+            write("\">");
+            if (c == '<')
+            {
+               write("&lt;");
+            }
+            else
+            if (c == '&')
+            {
+               write("&amp;");
+            }
+            else
+            {
+               write(c);
+            }
+            write("</text></defs>\n");
+         }
+         write("<use xlink:href=\"#g");
+         number(id);
+         write("\" x=\"");
+         number(x);
+         write("\" y=\"");
+         number(y);
+         write("\"/>\n");
+      }
+
+      // the id of the <defs> of c, -1 if it is not written yet
+      private int glyphId(char c)
+      {
+         if (c < ascii.length)
+         {
+            return ascii[c] - 1;
+         }
+         Integer id = glyphs.get(c);
+         return id == null ? -1 : id;
+      }
+
+      @Override
+      public void stroke(int x1, int y1, int x2, int y2)
+      {
+         path("s", x1, y1, x2, y2);
+      }
+
+      @Override
+      public void hairline(int x1, int y1, int x2, int y2)
+      {
+         path("h", x1, y1, x2, y2);
+      }
+
+      @Override
+      public boolean visible(int x, int y, int w, int h)
+      {
+         return true;
+      }
+
+      private void path(String cl, int x1, int y1, int x2, int y2)
+      {
+         write("<path class=\"");
+         write(cl);
+         write("\" d=\"M");
+         number(x1);
+         write(' ');
+         number(y1);
+         if (y1 == y2)
+         {
+            write('H');
+            number(x2);
+         }
+         else
+         if (x1 == x2)
+         {
+            write('V');
+            number(y2);
+         }
+         else
+         {
+            write('L');
+            number(x2);
+            write(' ');
+            number(y2);
+         }
+         write("\"/>\n");
+      }
+
+      // writes v with at most two decimals
+      private void number(float v)
+      {
+         long r = Math.round(v * 100.0);
+         if (r < 0)
+         {
+            write('-');
+            r = -r;
+         }
+         number(r / 100);
+         int f = (int) (r % 100);
+         if (f != 0)
+         {
+            write('.');
+            write((char) ('0' + f / 10));
+            if (f % 10 != 0)
+            {
+               write((char) ('0' + f % 10));
+            }
+         }
+      }
+
+      // writes v without making a String
+      private void number(long v)
+      {
+         if (v < 0)
+         {
+            write('-');
+            v = -v;
+         }
+         int i = digits.length;
+         do
+         {
+            digits[--i] = (char) ('0' + v % 10);
+            v /= 10;
+         }
+         while (v > 0);
+         if (error == null)
+         {
+            try
+            {
+               out.write(digits, i, digits.length - i);
+            }
+            catch (IOException e)
+            {
+               error = e;
+            }
+         }
+      }
+
+      private void write(String s)
+      {
+         if (error == null)
+         {
+            try
+            {
+               out.write(s);
+            }
+            catch (IOException e)
+            {
+               error = e;
+            }
+         }
+      }
+
+      private void write(char c)
+      {
+         if (error == null)
+         {
+            try
+            {
+               out.write(c);
+            }
+            catch (IOException e)
+            {
+               error = e;
+            }
+         }
+      }
+   }
+
+   // Renders a score of any length as SVG with memory for one column
+   // of bars at a time. The text is read three times, so it comes from
+   // a TextSource that can be opened again. The first pass finds where
+   // the voices start. The other passes read all voices side by side,
+   // one reader per voice, a column at a time: the second one measures
+   // the height of the voices and the width of the score, the third one
+   // writes a column as soon as it is laid out. The width of a column
+   // is taken from its elements, nothing is kept per column.
+   // The elements are written column by column instead of voice by
+   // voice and the score and voice borders are left out, otherwise the
+   // result is the same as Score.writeSVG().
+   static public class StreamRenderer
+   {
+      static public interface TextSource
+      {
+         Reader open() throws IOException;
+      }
+
+      // gets the elements of one column, els[v] is the laid out element
+      // of voice v or null, x is the start and cw the width of the column
+      static private interface ColumnVisitor
+      {
+         void column(SElement[] els, int x, int cw);
+      }
+
+      private TextSource        source;
+      private RenderConfig      rc;
+      private FontRenderContext frc = Score.svgfrc;
+      private int               notes;
+
+      private IntList voicepos = new IntList();   // start of each voice in the text, by the first pass
+      private int[]   voiceh   = new int[0];      // by the second pass
+      private int[]   voicebsl = new int[0];
+      private int     width    = 0;
+
+      public StreamRenderer(TextSource src)
+      {
+         this(src, RenderConfig.DEFAULT);
+      }
+
+      public StreamRenderer(TextSource src, RenderConfig c)
+      {
+         source = src;
+         rc     = c;
+      }
+
+      static public int render(File in, Writer out) throws IOException, ParseException
+      {
+         return render(in, out, RenderConfig.DEFAULT);
+      }
+
+      static public int render(File in, Writer out, RenderConfig rc) throws IOException, ParseException
+      {
+         StreamRenderer sr = new StreamRenderer(() -> Files.newBufferedReader(in.toPath(), StandardCharsets.UTF_8), rc);
+         sr.render(out);
+         return sr.getNoteCount();
+      }
+
+      // a Reader can only be read once, its text is kept in a temporary file
+      static public int render(Reader in, Writer out) throws IOException, ParseException
+      {
+         File tmp = File.createTempFile("cnotation2svg", ".cn");
+         try
+         {
+            try (Writer wr = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8))
+            {
+               char[] buf = new char[8192];
+               int    r;
+               while ((r = in.read(buf)) >= 0)
+               {
+                  wr.write(buf, 0, r);
+               }
+            }
+            return render(tmp, out);
+         }
+         finally
+         {
+            tmp.delete();
+         }
+      }
+
+      public int getNoteCount()
+      {
+         return notes;
+      }
+
+      public void render(Writer out) throws IOException, ParseException
+      {
+         try
+         {
+            measure();
+            draw(out);
+         }
+         catch (UncheckedIOException e)
+         {
+            throw e.getCause();
+         }
+      }
+
+      // finds the voices, the elements are only parsed
+      private void measure() throws IOException, ParseException
+      {
+         voicepos.clear();
+
+         Parser parser = new Parser();
+         try (Reader in = source.open())
+         {
+            ReaderText text = new ReaderText(in, 0);
+            while (!text.empty() && Character.isWhitespace(text.get()))
+            {
+               text.next();
+            }
+
+            parser.parse_score_begin(text);
+            while (!text.empty() && text.startsWith("\\voice"))
+            {
+               voicepos.add(text.getPos());
+               parser.parse_voice_begin(text);
+               while (parser.parse_voice_element(text) != null)
+               {
+               }
+               parser.parse_voice_end(text);
+            }
+            parser.parse_score_end(text);
+         }
+         notes = parser.getNoteCount();
+
+         // the voices only need their height and baseline,
+         // the score its width
+         int nv = voicepos.size();
+         voiceh   = new int[nv];
+         voicebsl = new int[nv];
+         width    = 0;
+         columns((els, x, cw) ->
+         {
+            for (int v=0; v < nv; v++)
+            {
+               SElement el = els[v];
+               if (el != null && el.withBaseline())
+               {
+                  voiceh[v]   = Math.max(voiceh[v],   el.getH());
+                  voicebsl[v] = Math.max(voicebsl[v], el.getBaseline());
+               }
+            }
+            width = x + cw;
+         });
+      }
+
+      private void draw(Writer out) throws IOException, ParseException
+      {
+         int   nv = voicepos.size();
+         int[] vy = new int[nv];
+         int   hh = 0;
+         for (int v=0; v < nv; v++)
+         {
+            vy[v] = hh;
+            hh += voiceh[v];
+         }
+
+         SVGWriter sw = new SVGWriter(out, rc);
+         sw.begin(width, hh);
+         columns((els, x, cw) ->
+         {
+            for (int v=0; v < nv; v++)
+            {
+               SElement el = els[v];
+               if (el == null)
+               {
+                  continue;
+               }
+               // the same place as in the VGroup of a Score
+               el.setX(x);
+               if (el.withBaseline())
+               {
+                  el.setY(voicebsl[v] - el.getBaseline());
+               }
+               else
+               {
+                  el.setH(voiceh[v]);
+               }
+               if (el instanceof Bar)
+               {
+                  el.setW(cw);
+               }
+               el.draw(0, vy[v], sw);
+            }
+         });
+         sw.end();
+      }
+
+      // Reads the voices side by side and lays out one column at a
+      // time, the column is as wide as its widest element. A voice
+      // that has no more elements gives null.
+      private void columns(ColumnVisitor cv) throws IOException, ParseException
+      {
+         int          nv     = voicepos.size();
+         Parser       parser = new Parser();
+         Reader[]     ins    = new Reader[nv];
+         ReaderText[] texts  = new ReaderText[nv];
+         SElement[]   els    = new SElement[nv];
+         try
+         {
+            for (int v=0; v < nv; v++)
+            {
+               ins[v] = source.open();
+               skip(ins[v], voicepos.get(v));
+               texts[v] = new ReaderText(ins[v], voicepos.get(v));
+               parser.parse_voice_begin(texts[v]);
+            }
+
+            int xx = 0;
+            while (true)
+            {
+               int     cw  = 0;
+               boolean any = false;
+               for (int v=0; v < nv; v++)
+               {
+                  els[v] = null;
+                  if (texts[v] == null)
+                  {
+                     continue;
+                  }
+                  SElement el = parser.parse_voice_element(texts[v]);
+                  if (el == null)
+                  {
+                     // this voice has no more columns
+                     texts[v] = null;
+                     continue;
+                  }
+                  el.calcLayout(0, frc, rc);
+                  cw     = Math.max(cw, el.getNaturalW());
+                  els[v] = el;
+                  any    = true;
+               }
+               if (!any)
+               {
+                  break;
+               }
+               cv.column(els, xx, cw);
+               xx += cw;
+            }
+         }
+         finally
+         {
+            for (Reader in: ins)
+            {
+               if (in != null)
+               {
+                  in.close();
+               }
+            }
+         }
+      }
+
+      static private void skip(Reader in, long n) throws IOException
+      {
+         while (n > 0)
+         {
+            long r = in.skip(n);
+            if (r <= 0)
+            {
+               throw new IOException("text ends before position " + n);
+            }
+            n -= r;
+         }
+      }
+   }
+   
+   // Cuts a laid out score into tiles of at most maxw wide and writes
+   // each tile as SVG or PNG, with an index file of the tile bounds.
+   // A tile ends at a column boundary of the score, so no bar is cut.
+   // A column wider than maxw gets a tile of its own.
+   // The tiles are drawn at the same time, from the spatial index
+   // of the score, which is built before they start.
+   static public class TileRenderer
+   {
+      private Score           score;
+      private boolean         png;
+      private List<Rectangle> tiles = new ArrayList<Rectangle>();
+
+      public TileRenderer(Score sc, int maxw, boolean pn)
+      {
+         score = sc;
+         png   = pn;
+         score.ensureLayout(Score.svgfrc);
+
+         int ww = score.getW();
+         int hh = score.getH();
+         int x0 = 0;
+         if (score.getRoot() instanceof VGroup)
+         {
+            VGroup vg = (VGroup) score.getRoot();
+            for (int k=0; k < vg.getColumnCount(); k++)
+            {
+               int cx = vg.getColumnX(k);
+               if (vg.getColumnX(k + 1) - x0 > maxw && cx > x0)
+               {
+                  tiles.add(new Rectangle(x0, 0, cx - x0, hh));
+                  x0 = cx;
+               }
+            }
+         }
+         if (ww > x0 || tiles.isEmpty())
+         {
+            tiles.add(new Rectangle(x0, 0, ww - x0, hh));
+         }
+      }
+
+      public List<Rectangle> getTiles()
+      {
+         return tiles;
+      }
+
+      public String getExtension()
+      {
+         return png ? ".png" : ".svg";
+      }
+
+      // writes base-0000.svg ... and base.tiles.json in dir,
+      // the tiles are drawn on the pool
+      public void write(File dir, String base, ExecutorService pool) throws IOException
+      {
+         score.getIndex();
+
+         List<Future<?>> results = new ArrayList<Future<?>>();
+         for (int i=0; i < tiles.size(); i++)
+         {
+            final Rectangle r = tiles.get(i);
+            final File      f = new File(dir, tileName(base, i));
+            results.add(pool.submit(() ->
+            {
+               writeTile(r, f);
+               return null;
+            }));
+         }
+         try
+         {
+            for (Future<?> fu: results)
+            {
+               fu.get();
+            }
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("tiles of " + base);
+         }
+         catch (ExecutionException e)
+         {
+            if (e.getCause() instanceof IOException)
+            {
+               throw (IOException) e.getCause();
+            }
+            throw new IOException("tile of " + base, e.getCause());
+         }
+
+         writeIndex(dir, base);
+      }
+
+      public String tileName(String base, int i)
+      {
+         return String.format("%s-%04d%s", base, i, getExtension());
+      }
+
+      // draws the part r of the score into f
+      public void writeTile(Rectangle r, File f) throws IOException
+      {
+         if (png)
+         {
+            BufferedImage im = new BufferedImage(Math.max(r.width, 1), Math.max(r.height, 1), BufferedImage.TYPE_INT_RGB);
+            Graphics2D g2 = im.createGraphics();
+            try
+            {
+               g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,      RenderingHints.VALUE_ANTIALIAS_ON);
+               g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+               g2.setColor(Color.WHITE);
+               g2.fillRect(0, 0, im.getWidth(), im.getHeight());
+               g2.setColor(Color.BLACK);
+               g2.translate(-r.x, -r.y);
+               g2.clip(r);
+               score.draw(new GraphicsPainter(g2, score.getConfig()), r);
+            }
+            finally
+            {
+               g2.dispose();
+            }
+            if (!ImageIO.write(im, "png", f))
+            {
+               throw new IOException("no PNG writer");
+            }
+         }
+         else
+         {
+            try (Writer wr = Files.newBufferedWriter(f.toPath(), StandardCharsets.UTF_8))
+            {
+               SVGWriter sw = new SVGWriter(wr, score.getConfig());
+               sw.begin(r.width, r.height);
+               score.draw(new OffsetPainter(sw, -r.x, -r.y), r);
+               sw.end();
+            }
+         }
+      }
+
+      // s as the inside of a JSON string
+      static private String json(String s)
+      {
+         StringBuilder sb = new StringBuilder(s.length());
+         for (char c: s.toCharArray())
+         {
+            if (c == '"' || c == '\\')
+            {
+               sb.append('\\').append(c);
+            }
+            else
+            if (c < 0x20)
+            {
+               sb.append(String.format("\\u%04x", (int) c));
+            }
+            else
+            {
+               sb.append(c);
+            }
+         }
+         return sb.toString();
+      }
+
+      private void writeIndex(File dir, String base) throws IOException
+      {
+         try (Writer wr = Files.newBufferedWriter(new File(dir, base + ".tiles.json").toPath(), StandardCharsets.UTF_8))
+         {
+            wr.write("{\n  \"width\": " + score.getW() + ",\n  \"height\": " + score.getH() + ",\n  \"tiles\": [\n");
+            for (int i=0; i < tiles.size(); i++)
+            {
+               Rectangle r = tiles.get(i);
+               wr.write("    { \"file\": \"" + json(tileName(base, i)) + "\", \"x\": " + r.x + ", \"y\": " + r.y
+                        + ", \"w\": " + r.width + ", \"h\": " + r.height + " }" + (i + 1 < tiles.size() ? ",\n" : "\n"));
+            }
+            wr.write("  ]\n}\n");
+         }
+      }
+   }
+
+   // Draws into a grid of character cells for a terminal preview.
+   // A cell covers cw x ch pixels of the layout: half the font size
+   // wide and one line height high, so nested lines get rows of their
+   // own. Notes become their letter, lines and barlines box drawing
+   // characters and the borders dots. A letter is never overwritten.
+   static public class CellPainter implements Painter
+   {
+      private final RenderConfig rc;
+      private final int          cw;      // pixels per cell
+      private final int          ch;
+      private final int          col0;    // the first cell shown
+      private final int          row0;
+      private final int          cols;
+      private final int          rows;
+      private final char[]       cells;
+
+      static public final char HLINE  = '\u2500';   // box drawings
+      static public final char VLINE  = '\u2502';
+      static public final char BORDER = '\u00b7';   // middle dot
+
+      public CellPainter(RenderConfig c, int co0, int ro0, int cs, int rs)
+      {
+         rc    = c;
+         cw    = cellWidth(c);
+         ch    = cellHeight(c);
+         col0  = co0;
+         row0  = ro0;
+         cols  = Math.max(0, cs);
+         rows  = Math.max(0, rs);
+         cells = new char[cols * rows];
+         Arrays.fill(cells, ' ');
+      }
+
+      static public int cellWidth(RenderConfig c)
+      {
+         return Math.max(1, c.getPtsize() / 2);
+      }
+
+      static public int cellHeight(RenderConfig c)
+      {
+         return Math.max(1, c.getLineheight());
+      }
+
+      // the part of the layout in pixels that is shown
+      public Rectangle getClip()
+      {
+         return new Rectangle(col0 * cw, row0 * ch, cols * cw, rows * ch);
+      }
+
+      public char get(int col, int row)
+      {
+         return cells[row * cols + col];
+      }
+
+      @Override
+      public RenderConfig getConfig()
+      {
+         return rc;
+      }
+
+      // c in the cell that holds the glyph just above its baseline
+      @Override
+      public void glyph(char c, float x, float y)
+      {
+         int col = Math.floorDiv((int) x, cw) - col0;
+         int row = Math.floorDiv((int) y - 1, ch) - row0;
+         if (col >= 0 && col < cols && row >= 0 && row < rows)
+         {
+            cells[row * cols + col] = c;
+         }
+      }
+
+      @Override
+      public void stroke(int x1, int y1, int x2, int y2)
+      {
+         if (y1 == y2)
+         {
+            int row = Math.floorDiv(y1, ch);
+            for (int col = Math.floorDiv(Math.min(x1, x2), cw); col <= Math.floorDiv(Math.max(x1, x2) - 1, cw); col++)
+            {
+               line(col, row, HLINE);
+            }
+         }
+         else
+         if (x1 == x2)
+         {
+            int col = Math.floorDiv(x1, cw);
+            for (int row = Math.floorDiv(Math.min(y1, y2), ch); row <= Math.floorDiv(Math.max(y1, y2) - 1, ch); row++)
+            {
+               line(col, row, VLINE);
+            }
+         }
+      }
+
+      // the borders only go where nothing else is
+      @Override
+      public void hairline(int x1, int y1, int x2, int y2)
+      {
+         for (int col = Math.floorDiv(Math.min(x1, x2), cw); col <= Math.floorDiv(Math.max(x1, x2), cw); col++)
+         {
+            for (int row = Math.floorDiv(Math.min(y1, y2), ch); row <= Math.floorDiv(Math.max(y1, y2), ch); row++)
+            {
+               int k = index(col, row);
+               if (k >= 0 && cells[k] == ' ')
+               {
+                  cells[k] = BORDER;
+               }
+            }
+         }
+      }
+
+      @Override
+      public boolean visible(int x, int y, int w, int h)
+      {
+         return getClip().intersects(x - cw, y - ch, w + 2*cw, h + 2*ch);
+      }
+
+      // col and row in the layout, -1 if the cell is not shown
+      private int index(int col, int row)
+      {
+         col -= col0;
+         row -= row0;
+         if (col < 0 || col >= cols || row < 0 || row >= rows)
+         {
+            return -1;
+         }
+         return row * cols + col;
+      }
+
+      private void line(int col, int row, char c)
+      {
+         int k = index(col, row);
+         if (k < 0)
+         {
+            return;
+         }
+         // a barline wins over the end of a line
+         char old = cells[k];
+         if (old == ' ' || old == BORDER || (old == HLINE && c == VLINE))
+         {
+            cells[k] = c;
+         }
+      }
+
+      // the cells, one line per row without the trailing blanks
+      @Override
+      public String toString()
+      {
+         StringBuilder sb = new StringBuilder();
+         for (int row=0; row < rows; row++)
+         {
+            int end = cols;
+            while (end > 0 && cells[row * cols + end - 1] == ' ')
+            {
+               end--;
+            }
+            sb.append(cells, row * cols, end).append('\n');
+         }
+         return sb.toString();
+      }
+   }
+
+   // Shows a laid out score in a terminal with lanterna, for hosts
+   // without a display. The arrow keys, page up and down, home and end
+   // scroll, q or escape quits. Only the cells that can be seen are
+   // drawn, through the spatial index, and the screen sends only the
+   // cells that changed since the last refresh.
+   static public class TerminalPreview
+   {
+      private final Score score;
+      private final Map<Character, TextCharacter> chars = new HashMap<Character, TextCharacter>();
+      private int         col = 0;     // the cell at the top left
+      private int         row = 0;
+
+      public TerminalPreview(Score sc)
+      {
+         score = sc;
+      }
+
+      // the cells of the score from col, row on
+      public CellPainter paint(int cols, int rows)
+      {
+         CellPainter cp = new CellPainter(score.getConfig(), col, row, cols, rows);
+         score.draw(cp, cp.getClip());
+         return cp;
+      }
+
+      // the whole score as text
+      public String text()
+      {
+         score.getIndex();
+         RenderConfig rc = score.getConfig();
+         int cols = (score.getW() + CellPainter.cellWidth(rc) - 1) / CellPainter.cellWidth(rc);
+         int rows = (score.getH() + CellPainter.cellHeight(rc) - 1) / CellPainter.cellHeight(rc);
+         return paint(cols, rows).toString();
+      }
+
+      public void show() throws IOException
+      {
+         score.getIndex();
+         RenderConfig rc = score.getConfig();
+         int maxcol = score.getW() / CellPainter.cellWidth(rc);
+         int maxrow = score.getH() / CellPainter.cellHeight(rc);
+
+         Screen screen = new DefaultTerminalFactory().createScreen();
+         screen.startScreen();
+         try
+         {
+            screen.setCursorPosition(null);
+            while (true)
+            {
+               screen.doResizeIfNecessary();
+               TerminalSize ts = screen.getTerminalSize();
+               int cols = ts.getColumns();
+               int rows = ts.getRows() - 1;    // the last row is the status line
+
+               CellPainter cp = paint(cols, rows);
+               for (int r=0; r < rows; r++)
+               {
+                  for (int c=0; c < cols; c++)
+                  {
+                     screen.setCharacter(c, r, textChar(cp.get(c, r)));
+                  }
+               }
+               String status = String.format(" %d,%d of %dx%d   arrows, page up/down, home/end: scroll   q: quit",
+                                             col, row, maxcol, maxrow);
+               for (int c=0; c < cols; c++)
+               {
+                  screen.setCharacter(c, rows, textChar(c < status.length() ? status.charAt(c) : ' '));
+               }
+               screen.refresh(Screen.RefreshType.DELTA);
+
+               KeyStroke key = screen.readInput();
+               switch (key.getKeyType())
+               {
+                  case ArrowLeft:  col -= 4;        break;
+                  case ArrowRight: col += 4;        break;
+                  case ArrowUp:    row -= 1;        break;
+                  case ArrowDown:  row += 1;        break;
+                  case PageUp:     col -= cols / 2; break;
+                  case PageDown:   col += cols / 2; break;
+                  case Home:       col = 0;         break;
+                  case End:        col = maxcol;    break;
+                  case Escape:
+                  case EOF:
+                     return;
+                  case Character:
+                     if (key.getCharacter() == 'q')
+                     {
+                        return;
+                     }
+                     break;
+                  default:
+                     break;
+               }
+               col = Math.max(0, Math.min(col, maxcol - cols / 2));
+               row = Math.max(0, Math.min(row, maxrow - rows / 2));
+            }
+         }
+         finally
+         {
+            screen.stopScreen();
+         }
+      }
+
+      private TextCharacter textChar(char c)
+      {
+         TextCharacter tc = chars.get(c);
+         if (tc == null)
+         {
+            tc = new TextCharacter(c);
+            chars.put(c, tc);
+         }
+         return tc;
+      }
+   }
+   
+   // Keeps finished SVG documents so a snippet that comes back is not
+   // parsed, laid out and written again. The key is a SHA-256 hash of
+   // the normalised text, the RenderConfig, the kind of SVG output and
+   // the version of the output format.
+   // A bounded LRU tier in memory is backed by an optional directory
+   // on disk that survives the process.
+   // Two threads that miss on the same text both render it.
+   static public class RenderCache
+   {
+      // Raise this when a score is drawn or written differently, the
+      // SVG of an older version on disk then gets other keys.
+      static public final int format = 1;
+
+      private final long   maxbytes;   // bound of the memory tier
+      private final File   dir;        // disk tier, null if none
+      private long         bytes = 0;
+      private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+      private final AtomicLong hits      = new AtomicLong();
+      private final AtomicLong diskhits  = new AtomicLong();
+      private final AtomicLong misses    = new AtomicLong();
+      private final AtomicLong evictions = new AtomicLong();
+
+      // mb bytes in memory, d is the disk tier or null
+      public RenderCache(long mb, File d)
+      {
+         maxbytes = mb;
+         dir      = d;
+         if (dir != null)
+         {
+            dir.mkdirs();
+         }
+      }
+
+      // the same score written a bit differently gets the same key
+      static public String normalise(String text)
+      {
+         return text.replace("\r\n", "\n").replace('\r', '\n').trim();
+      }
+
+      static public String key(String text, boolean nativesvg, RenderConfig rc)
+      {
+         String id = "format " + format
+                   + "\n" + normalise(text)
+                   + "\n" + rc.getFontname()
+                   + "\n" + rc.getPtsize()
+                   + "\n" + rc.hasBorder()
+                   + "\n" + (nativesvg ? "SVGWriter" : "SVGGraphics2D");
+         try
+         {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(id.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b: hash)
+            {
+               sb.append(Character.forDigit((b >> 4) & 15, 16));
+               sb.append(Character.forDigit(b & 15, 16));
+            }
+            return sb.toString();
+         }
+         catch (NoSuchAlgorithmException e)
+         {
+            // every Java platform has SHA-256
+            throw new IllegalStateException(e);
+         }
+      }
+
+      public byte[] render(String text, boolean nativesvg) throws ParseException
+      {
+         return render(text, nativesvg, RenderConfig.DEFAULT);
+      }
+
+      // the SVG of text as UTF-8, rendered only on a miss
+      public byte[] render(String text, boolean nativesvg, RenderConfig rc) throws ParseException
+      {
+         String key = key(text, nativesvg, rc);
+         byte[] svg = get(key);
+         if (svg == null)
+         {
+            svg = svg(new Parser().parse(normalise(text)), nativesvg, rc);
+            put(key, svg);
+         }
+         return svg;
+      }
+
+      // The SVG stored under key or null, a null counts as a miss.
+      // A caller that renders itself, with a parser of its own,
+      // puts the result afterwards.
+      public byte[] get(String key)
+      {
+         byte[] svg = getMemory(key);
+         if (svg != null)
+         {
+            hits.incrementAndGet();
+            return svg;
+         }
+
+         svg = getDisk(key);
+         if (svg != null)
+         {
+            diskhits.incrementAndGet();
+            putMemory(key, svg);
+            return svg;
+         }
+
+         misses.incrementAndGet();
+         return null;
+      }
+
+      public void put(String key, byte[] svg)
+      {
+         putMemory(key, svg);
+         putDisk(key, svg);
+      }
+
+      // the SVG of sc as UTF-8, what the cache stores
+      static public byte[] svg(Score sc, boolean nativesvg, RenderConfig rc)
+      {
+         if (nativesvg)
+         {
+            StringWriter sw = new StringWriter();
+            try
+            {
+               sc.writeSVG(sw, rc);
+            }
+            catch (IOException e)
+            {
+               // a StringWriter does not fail
+               throw new UncheckedIOException(e);
+            }
+            return sw.toString().getBytes(StandardCharsets.UTF_8);
+         }
+         return sc.toSVG(rc).getBytes(StandardCharsets.UTF_8);
+      }
+
+      synchronized private byte[] getMemory(String key)
+      {
+         return memory.get(key);
+      }
+
+      synchronized private void putMemory(String key, byte[] svg)
+      {
+         if (svg.length > maxbytes)
+         {
+            return;
+         }
+         byte[] old = memory.put(key, svg);
+         if (old != null)
+         {
+            bytes -= old.length;
+         }
+         bytes += svg.length;
+
+         // drop the least recently used documents
+         Iterator<Map.Entry<String, byte[]>> it = memory.entrySet().iterator();
+         while (bytes > maxbytes && it.hasNext())
+         {
+            bytes -= it.next().getValue().length;
+            it.remove();
+            evictions.incrementAndGet();
+         }
+      }
+
+      private File diskFile(String key)
+      {
+         return new File(new File(dir, key.substring(0, 2)), key + ".svg");
+      }
+
+      private byte[] getDisk(String key)
+      {
+         if (dir == null)
+         {
+            return null;
+         }
+         try
+         {
+            return Files.readAllBytes(diskFile(key).toPath());
+         }
+         catch (IOException e)
+         {
+            return null;
+         }
+      }
+
+      private void putDisk(String key, byte[] svg)
+      {
+         if (dir == null)
+         {
+            return;
+         }
+         File f = diskFile(key);
+         try
+         {
+            // other processes only ever see a complete file
+            f.getParentFile().mkdirs();
+            File tmp = File.createTempFile(key, ".tmp", f.getParentFile());
+            Files.write(tmp.toPath(), svg);
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+         }
+         catch (IOException e)
+         {
+            // the cache is only an aid, the render itself succeeded
+         }
+      }
+
+      public long getHits()
+      {
+         return hits.get();
+      }
+
+      public long getDiskHits()
+      {
+         return diskhits.get();
+      }
+
+      public long getMisses()
+      {
+         return misses.get();
+      }
+
+      public long getEvictions()
+      {
+         return evictions.get();
+      }
+
+      // part of the requests served from memory or disk
+      public double getHitRatio()
+      {
+         long h = hits.get() + diskhits.get();
+         long n = h + misses.get();
+         return n == 0 ? 0 : (double) h / n;
+      }
+
+      synchronized public long getBytes()
+      {
+         return bytes;
+      }
+
+      public String toString()
+      {
+         return String.format("cache: %d hits, %d disk hits, %d misses, %.1f%% hit ratio, %d evictions, %d bytes in memory",
+                              getHits(), getDiskHits(), getMisses(), 100 * getHitRatio(), getEvictions(), getBytes());
+      }
+   }
+   
+//  ----------------- Swing -------------------   
+   
+   // Shows a score. The visible part of the score is rendered once
+   // into an image, a repaint copies the damaged rectangle from it.
+   // The score is only drawn again when it was changed or when a
+   // part outside the image is needed, and then only the elements
+   // inside the view are drawn.
+   public class CNotationPanel extends JPanel
+   {
+      private Score         score;
+      private BufferedImage cache     = null;
+      private Rectangle     cacherect = null;   // part of the score in cache
+      
+      CNotationPanel(Score sc)
+      {
+         score = sc;
+         setBackground(Color.WHITE);
+         setOpaque(true);
+         setToolTipText("");
+      }
+
+      // names the element under the mouse
+      @Override
+      public String getToolTipText(MouseEvent e)
+      {
+         SElement el = score.elementAt(e.getX(), e.getY());
+         if (el == null)
+         {
+            return null;
+         }
+         return el.getClass().getSimpleName() + " #" + el.getNr();
+      }
+
+      // Call after the score was edited, r is the changed area
+      // or null if it is not known.
+      public void scoreChanged(Rectangle r)
+      {
+         if (r == null || cache == null)
+         {
+            cache = null;
+            revalidate();
+            repaint();
+         }
+         else
+         {
+            if (r.intersects(cacherect))
+            {
+               render(r.intersection(cacherect));
+            }
+            repaint(r);
+         }
+      }
+
+      @Override
+      public Dimension getPreferredSize()
+      {
+         score.ensureLayout(getFontMetrics(getFont()).getFontRenderContext());
+         return new Dimension(score.getW(), score.getH());
+      }
+
+      @Override
+      protected void paintComponent(Graphics g)
+      {
+         Rectangle clip = g.getClipBounds();
+         if (clip == null)
+         {
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+         }
+
+         // an edit of the score, a new layout is needed
+         if (!score.isLok())
+         {
+            cache = null;
+         }
+
+         if (cache == null || !cacherect.contains(clip))
+         {
+            Rectangle view = getVisibleRect().union(clip);
+            if (cache == null || cache.getWidth() != view.width || cache.getHeight() != view.height)
+            {
+               cache = new BufferedImage(Math.max(view.width, 1), Math.max(view.height, 1), BufferedImage.TYPE_INT_RGB);
+            }
+            cacherect = view;
+            render(view);
+         }
+
+         int sx = clip.x - cacherect.x;
+         int sy = clip.y - cacherect.y;
+         g.drawImage(cache, clip.x, clip.y, clip.x + clip.width, clip.y + clip.height,
+                            sx,     sy,     sx + clip.width,     sy + clip.height, null);
+      }
+
+      // draws the part r of the score into the cache
+      private void render(Rectangle r)
+      {
+         Graphics2D cg = cache.createGraphics();
+         try
+         {
+            cg.translate(-cacherect.x, -cacherect.y);
+            cg.setClip(r);
+            cg.setColor(getBackground());
+            cg.fillRect(r.x, r.y, r.width, r.height);
+            cg.setColor(getForeground());
+            score.draw(cg);
+         }
+         finally
+         {
+            cg.dispose();
+         }
+      }
+   }
+   
+
+// ----------------- parse -----------------------   
+   
+   static public class ParseException extends Exception
+   {
+      private String text;
+      
+      public ParseException()
+      {
+         text = "";
+      }
+
+      public ParseException(String te)
+      {
+         text = te;
+      }
+      
+      public String toString()
+      {
+         return "ParseException " + text;
+      }
+   }
+   
+   static public class ParseText
+   {
+      private String text;
+      private int    pos;  // index of the current character in text
+      
+      public ParseText(String te)
+      {
+         text = te;
+         pos  = 0;
+      }
+
+      protected ParseText()
+      {
+         this("");
+      }
+      
+      public boolean empty()
+      {
+         return pos >= text.length();
+      }
+
+      public int getPos()
+      {
+         return pos;
+      }
+
+      public char get() throws ParseException
+      {
+         if (pos < text.length())
+         {
+            return text.charAt(pos);
+         }
+         else
+         {
+            throw new ParseException("at get");
+         }
+      }
+      
+      public boolean startsWith(String te)
+      {
+         return text.startsWith(te, pos);
+      }
+
+      public void next() throws ParseException
+      {
+         if (startsWith("\\score"))
+         {
+            skip(6);
+         }
+         else
+         if (startsWith("\\voice"))
+         {
+            skip(6);
+         }
+         else
+         if (!empty())
+         {
+            skip(1);
+         }
+         else
+         {
+            throw new ParseException("at next");
+         }
+      }
+
+      // moves over k characters that are known to be there
+      protected void skip(int k)
+      {
+         pos += k;
+      }
+      
+      // only show the next few characters,
+      // the rest of the text can be very long
+      public String toString()
+      {
+         int end = Math.min(text.length(), pos + 20);
+         if (end < text.length())
+         {
+            return text.substring(pos, end) + "...";
+         }
+         return text.substring(pos, end);
+      }
+   }
+   
+   // A ParseText that reads from a Reader and keeps only a small
+   // window of the text in memory. Read errors are thrown as an
+   // UncheckedIOException, empty() and startsWith() cannot throw more.
+   static public class ReaderText extends ParseText
+   {
+      private Reader  in;
+      private char[]  buf  = new char[8192];
+      private int     bpos = 0;   // current character in buf
+      private int     blen = 0;   // characters in buf
+      private boolean eof  = false;
+      private int     pos;        // position of the current character in the text
+
+      // start is the position in the text of the next character of in
+      public ReaderText(Reader rd, int start)
+      {
+         in  = rd;
+         pos = start;
+      }
+
+      // makes n characters available if the text has them
+      private void fill(int n)
+      {
+         if (blen - bpos >= n || eof)
+         {
+            return;
+         }
+         System.arraycopy(buf, bpos, buf, 0, blen - bpos);
+         blen -= bpos;
+         bpos  = 0;
+         try
+         {
+            while (blen < n && !eof)
+            {
+               int r = in.read(buf, blen, buf.length - blen);
+               if (r < 0)
+               {
+                  eof = true;
+               }
+               else
+               {
+                  blen += r;
+               }
+            }
+         }
+         catch (IOException e)
+         {
+            throw new UncheckedIOException(e);
+         }
+      }
+
+      @Override
+      public boolean empty()
+      {
+         fill(1);
+         return bpos >= blen;
+      }
+
+      @Override
+      public int getPos()
+      {
+         return pos;
+      }
+
+      @Override
+      public char get() throws ParseException
+      {
+         fill(1);
+         if (bpos < blen)
+         {
+            return buf[bpos];
+         }
+         else
+         {
+            throw new ParseException("at get");
+         }
+      }
+
+      @Override
+      public boolean startsWith(String te)
+      {
+         fill(te.length());
+         if (blen - bpos < te.length())
+         {
+            return false;
+         }
+         for (int i=0; i < te.length(); i++)
+         {
+            if (buf[bpos + i] != te.charAt(i))
+            {
+               return false;
+            }
+         }
+         return true;
+      }
+
+      @Override
+      protected void skip(int k)
+      {
+         bpos += k;
+         pos  += k;
+      }
+
+      @Override
+      public String toString()
+      {
+         fill(21);
+         int n = Math.min(blen - bpos, 20);
+         return new String(buf, bpos, n) + (blen - bpos > 20 ? "..." : "");
+      }
+   }
+   
+   static public class Parser
+   {
+      // Lines can be nested this deep. Parsing, layout and drawing
+      // recurse once per level, a limit keeps a hostile text from
+      // overflowing the stack of the thread that handles it.
+      static public final int maxnesting = 256;
+
+      private int                    notes  = 0;     // number of notes read by this parser
+      private HashMap<String, Group> shared = null;  // root of each bar and line text
+      private StringBuilder          bartext = null; // the notes and lines of the current bar
+
+      public int getNoteCount()
+      {
+         return notes;
+      }
+
+      // With sharing on, bars and lines with the same text get one root
+      // Group, so its layout is done once for all of them. The parent
+      // of that Group is the first container, a score read this way can
+      // be laid out and drawn but must not be edited.
+      // The parser keeps the text of the current bar itself, so this
+      // also works for a ReaderText that only keeps a window.
+      public void setShare(boolean sh)
+      {
+         shared  = sh ? new HashMap<String, Group>() : null;
+         bartext = sh ? new StringBuilder() : null;
+      }
+
+      // Gives co the root of an earlier container with the same text,
+      // the text of co starts at start in bartext.
+      // A Line moves its root down, so lines and bars are kept apart.
+      private void share(Container co, int start)
+      {
+         String key = (co instanceof Line ? "line " : "bar ") + bartext.substring(start);
+         Group  gr  = shared.putIfAbsent(key, co.getRoot());
+         if (gr != null)
+         {
+            co.shareRoot(gr);
+         }
+      }
+
+      // only a nested line calls this method again,
+      // the notes of one bar are read in a loop,
+      // depth is the number of lines around co
+      public SElement parse_bar2(HContainer co, ParseText text, int depth) throws ParseException
+      {
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(0, "Parse.parse_bar2() " + text);
+         }
+         while (!text.empty())
+         {
+            if (text.get() == '(')
+            {
+               if (depth == maxnesting)
+               {
+                  throw new ParseException("at ( nested deeper than " + maxnesting);
+               }
+               Line line = new Line();
+               co.add(line);
+               text.next();
+               int start = 0;
+               if (shared != null)
+               {
+                  bartext.append('(');
+                  start = bartext.length();
+               }
+               parse_bar2(line, text, depth + 1);
+               if (shared != null)
+               {
+                  share(line, start);
+               }
+               if (!text.empty())
+               {
+                  if (text.get() == ')')
+                  {
+                     text.next();
+                     if (shared != null)
+                     {
+                        bartext.append(')');
+                     }
+                  }
+                  else
+                  {
+                     return co;
+                  }
+               }
+               else
+               {
+                  throw new ParseException("at ) expected");
+               }
+            }
+            else
+            if (text.get() == 'c')
+            {
+               Note nt = new Note(text.get());
+               co.add(nt);
+               notes++;
+               if (shared != null)
+               {
+                  bartext.append(text.get());
+               }
+               text.next();
+            }
+            else
+            {
+               return co;
+            }
+         }
+         return co;
+      }
+
+      public SElement parse_bar(ParseText text) throws ParseException
+      {
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(0, "Parse.parse_bar() " + text);
+         }
+         Bar bar = new Bar();
+         if (shared != null)
+         {
+            bartext.setLength(0);
+         }
+         parse_bar2(bar, text, 0);
+         if (shared != null)
+         {
+            share(bar, 0);
+         }
+         return bar;
+      }
+
+      public SElement parse_voice2(HContainer co, ParseText text) throws ParseException
+      {
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(0, "Parse.parse_voice2() " + text);
+         }
+         SElement el;
+         while ((el = parse_voice_element(text)) != null)
+         {
+            co.add(el);
+         }
+         return co;
+      }
+
+      // reads the next barline or bar of a voice,
+      // null at the end of the voice
+      public SElement parse_voice_element(ParseText text) throws ParseException
+      {
+         if (text.empty() || text.get() == '}')
+         {
+            return null;
+         }
+         else
+         if (text.get() == '|')
+         {
+            text.next();
+            return new Barline();
+         }
+         else
+         {
+            int pos = text.getPos();
+            SElement el = parse_bar(text);
+            if (text.getPos() == pos)
+            {
+               // nothing could be read, stop here instead of looping
+               throw new ParseException("at unexpected " + text.get());
+            }
+            return el;
+         }
+      }
+
+      // reads \voice{
+      public void parse_voice_begin(ParseText text) throws ParseException
+      {
+         if (text.startsWith("\\voice"))
+         {
+            text.next();
+            if (text.get() == '{')
+            {
+               text.next();
+            }
+            else
+            {
+               throw new ParseException("at { expected");
+            }
+         }
+         else
+         {
+            throw new ParseException("at \\voice expected");
+         }
+      }
+
+      // reads the } after the elements of a voice
+      public void parse_voice_end(ParseText text) throws ParseException
+      {
+         if (text.get() == '}')
+         {
+            text.next();
+         }
+         else
+         {
+            throw new ParseException("at } expected");
+         }
+      }
+      
+      public Voice parse_voice(ParseText text) throws ParseException
+      {
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(0, "Parse.parse_voice() " + text);
+         }
+         parse_voice_begin(text);
+
+         Voice voice = new Voice();
+         parse_voice2(voice, text);
+         parse_voice_end(text);
+         return voice;
+      }
+      
+      public Score parse_score2(Score sco, ParseText text) throws ParseException
+      {
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(0, "Parse.parse_score2() " + text);
+         }
+         while (!text.empty())
+         {
+            if (text.get() == '}')
+            {
+               return sco;
+            }
+            else
+            if (text.startsWith("\\voice"))
+            {
+               Voice voi = parse_voice(text);
+               sco.add(voi);
+            }
+            else
+            {
+               return sco;
+            }
+         }
+         return sco;
+      }
+
+      public Score parse_score(ParseText text) throws ParseException
+      {
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(0, "Parse.parse_score() " + text);
+         }
+         parse_score_begin(text);
+               
+         Score sc = new Score();
+         parse_score2(sc, text);
+         parse_score_end(text);
+         return sc;
+      }
+
+      // reads \score{
+      public void parse_score_begin(ParseText text) throws ParseException
+      {
+         if (text.startsWith("\\score"))
+         {
+            text.next();
+            if (text.get() == '{')
+            {
+               text.next();
+            }
+            else
+            {
+               throw new ParseException("at { expected");
+            }
+         }
+         else
+         {
+            throw new ParseException("at \\score expected");
+         }
+      }
+
+      // reads the } at the end of the score
+      public void parse_score_end(ParseText text) throws ParseException
+      {
+         if (text.get() == '}')
+         {
+            text.next();
+         }
+         else
+         {
+            throw new ParseException("at } expected");
+         }
+      }
+
+      public Score parse(String text) throws ParseException
+      {
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(0, "Parse.parse() " + text);
+         }
+         //return new Score(parse_voice(new ParseText(text)));
+         if (shared != null)
+         {
+            // nothing is shared between scores
+            shared.clear();
+         }
+         return parse_score(new ParseText(text));
+      }
+   }
+
+   // Reads the same text as the Parser straight into a FlatScore,
+   // no object is made per element.
+   static public class FlatParser
+   {
+      private int notes = 0;  // number of notes read by this parser
+
+      public int getNoteCount()
+      {
+         return notes;
+      }
+
+      // the children of co are added after prev,
+      // depth is the number of lines around co
+      private void parse_bar2(FlatScore fs, int co, int prev, ParseText text, int depth) throws ParseException
+      {
+         while (!text.empty())
+         {
+            if (text.get() == '(')
+            {
+               if (depth == Parser.maxnesting)
+               {
+                  throw new ParseException("at ( nested deeper than " + Parser.maxnesting);
+               }
+               int line = fs.add(FlatScore.LINE, co, prev, ' ');
+               prev = line;
+               text.next();
+               parse_bar2(fs, line, -1, text, depth + 1);
+               if (!text.empty())
+               {
+                  if (text.get() == ')')
+                  {
+                     text.next();
+                  }
+                  else
+                  {
+                     return;
+                  }
+               }
+               else
+               {
+                  throw new ParseException("at ) expected");
+               }
+            }
+            else
+            if (text.get() == 'c')
+            {
+               prev = fs.add(FlatScore.NOTE, co, prev, text.get());
+               notes++;
+               text.next();
+            }
+            else
+            {
+               return;
+            }
+         }
+      }
+
+      private void parse_voice2(FlatScore fs, int co, ParseText text) throws ParseException
+      {
+         int prev = -1;
+         while (!text.empty())
+         {
+            if (text.get() == '}')
+            {
+               return;
+            }
+            else
+            if (text.get() == '|')
+            {
+               prev = fs.add(FlatScore.BARLINE, co, prev, ' ');
+               text.next();
+            }
+            else
+            {
+               int pos = text.getPos();
+               int bar = fs.add(FlatScore.BAR, co, prev, ' ');
+               parse_bar2(fs, bar, -1, text, 0);
+               if (text.getPos() == pos)
+               {
+                  // nothing could be read, stop here instead of looping
+                  throw new ParseException("at unexpected " + text.get());
+               }
+               prev = bar;
+            }
+         }
+      }
+
+      private int parse_voice(FlatScore fs, int sco, int prev, ParseText text) throws ParseException
+      {
+         if (text.startsWith("\\voice"))
+         {
+            text.next();
+            if (text.get() == '{')
+            {
+               text.next();
+
+               int voice = fs.add(FlatScore.VOICE, sco, prev, ' ');
+               parse_voice2(fs, voice, text);
+               if (text.get() == '}')
+               {
+                  text.next();
+                  return voice;
+               }
+               else
+               {
+                  throw new ParseException("at } expected");
+               }
+            }
+            else
+            {
+               throw new ParseException("at { expected");
+            }
+         }
+         else
+         {
+            throw new ParseException("at \\voice expected");
+         }
+      }
+
+      private void parse_score2(FlatScore fs, int sco, ParseText text) throws ParseException
+      {
+         int prev = -1;
+         while (!text.empty())
+         {
+            if (text.get() == '}')
+            {
+               return;
+            }
+            else
+            if (text.startsWith("\\voice"))
+            {
+               prev = parse_voice(fs, sco, prev, text);
+            }
+            else
+            {
+               return;
+            }
+         }
+      }
+
+      public FlatScore parse(String text) throws ParseException
+      {
+         ParseText pt = new ParseText(text);
+         // every element takes at least one character
+         FlatScore fs = new FlatScore(text.length() + 1);
+         if (pt.startsWith("\\score"))
+         {
+            pt.next();
+            if (pt.get() == '{')
+            {
+               pt.next();
+               
+               int sco = fs.add(FlatScore.SCORE, -1, -1, ' ');
+               parse_score2(fs, sco, pt);
+               
+               if (pt.get() == '}')
+               {
+                  pt.next();
+                  fs.trim();
+                  return fs;
+               }
+               else
+               {
+                  throw new ParseException("at } expected");
+               }
+            }
+            else
+            {
+               throw new ParseException("at { expected");
+            }
+         }
+         else
+         {
+            throw new ParseException("at \\score expected");
+         }
+      }
+   }
+
+   // A parsed score in a compact binary file, so a corpus that is
+   // rendered again and again is lexed only once. After the header
+   // the tree follows in preorder, one byte per element: a note is its
+   // character, the other elements a tag below ' ', and END follows the
+   // last child of a voice, bar or line. The score itself is not
+   // written, the last END closes it.
+   //
+   //   "CNB" version:byte elements:int notes:int tree...
+   //
+   // The reader maps the file and builds the tree with a stack of open
+   // containers, without any text in between, or fills a FlatScore of
+   // exactly the size in the header. Shared roots are written out in
+   // full, the tree that is read back shares nothing.
+   static public class BinaryScore
+   {
+      static public final int  version = 1;
+
+      static public final byte END     = 0;
+      static public final byte VOICE   = 1;
+      static public final byte BAR     = 2;
+      static public final byte LINE    = 3;
+      static public final byte BARLINE = 4;
+      static public final byte NOTE    = ' ';   // and up, the character
+
+      static private final int headersize = 12;
+
+      private int notes    = 0;     // read by the last read()
+      private int elements = 0;
+
+      public int getNoteCount()
+      {
+         return notes;
+      }
+
+      public int getElementCount()
+      {
+         return elements;
+      }
+
+      static public void write(Score sc, File f) throws IOException
+      {
+         try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(f.toPath())))
+         {
+            write(sc, out);
+         }
+      }
+
+      static public void write(Score sc, OutputStream os) throws IOException
+      {
+         int[] counts = new int[2];
+         count(sc, counts);
+
+         DataOutputStream out = new DataOutputStream(os);
+         out.writeBytes("CNB");
+         out.writeByte(version);
+         out.writeInt(counts[0]);
+         out.writeInt(counts[1]);
+         for (int i=0; i < sc.size(); i++)
+         {
+            writeElement(sc.get(i), out);
+         }
+         out.writeByte(END);
+         out.flush();
+      }
+
+      // the number of elements and notes below el
+      static private void count(SElement el, int[] counts)
+      {
+         for (int i=0; i < el.size(); i++)
+         {
+            SElement ch = el.get(i);
+            counts[0]++;
+            if (ch instanceof Note)
+            {
+               counts[1]++;
+            }
+            count(ch, counts);
+         }
+      }
+
+      static private void writeElement(SElement el, DataOutputStream out) throws IOException
+      {
+         if (el instanceof Note)
+         {
+            char c = ((Note) el).getChar();
+            if (c < NOTE || c > 126)
+            {
+               throw new IOException("cannot write note " + (int) c);
+            }
+            out.writeByte(c);
+            return;
+         }
+         if (el instanceof Barline)
+         {
+            out.writeByte(BARLINE);
+            return;
+         }
+
+         if (el instanceof Voice)
+         {
+            out.writeByte(VOICE);
+         }
+         else
+         if (el instanceof Line)
+         {
+            out.writeByte(LINE);
+         }
+         else
+         if (el instanceof Bar)
+         {
+            out.writeByte(BAR);
+         }
+         else
+         {
+            throw new IOException("cannot write a " + el.getClass().getSimpleName());
+         }
+         for (int i=0; i < el.size(); i++)
+         {
+            writeElement(el.get(i), out);
+         }
+         out.writeByte(END);
+      }
+
+      public Score read(File f) throws IOException, ParseException
+      {
+         try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ))
+         {
+            return read(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+         }
+      }
+
+      public FlatScore readFlat(File f) throws IOException, ParseException
+      {
+         try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ))
+         {
+            return readFlat(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+         }
+      }
+
+      private void readHeader(ByteBuffer buf) throws ParseException
+      {
+         if (buf.remaining() < headersize
+             || buf.get() != 'C' || buf.get() != 'N' || buf.get() != 'B')
+         {
+            throw new ParseException("not a binary score");
+         }
+         int ver = buf.get();
+         if (ver != version)
+         {
+            throw new ParseException("binary score version " + ver + ", " + version + " expected");
+         }
+         elements = buf.getInt();
+         notes    = buf.getInt();
+         // every element takes at least one byte
+         if (elements < 0 || notes < 0 || notes > elements || elements > buf.remaining())
+         {
+            throw new ParseException("binary score has a bad header");
+         }
+      }
+
+      private void checkCounts(int els, int nts) throws ParseException
+      {
+         if (els != elements || nts != notes)
+         {
+            throw new ParseException("binary score has " + els + " elements and " + nts
+                                     + " notes, the header says " + elements + " and " + notes);
+         }
+      }
+
+      public Score read(ByteBuffer buf) throws ParseException
+      {
+         readHeader(buf);
+
+         // the open containers and their tags, the score at 0
+         Container[] stack = new Container[16];
+         byte[]      tags  = new byte[16];
+         int         top   = 0;
+         stack[0] = new Score();
+         tags[0]  = END;
+         int els = 0;
+         int nts = 0;
+         while (top >= 0)
+         {
+            if (!buf.hasRemaining())
+            {
+               throw new ParseException("binary score ends too soon");
+            }
+            byte tag = buf.get();
+            if (tag == END)
+            {
+               top--;
+               continue;
+            }
+            if (!allowed(tags[top], tag))
+            {
+               throw new ParseException("binary score has tag " + tag + " in tag " + tags[top]);
+            }
+
+            SElement el;
+            if (tag >= NOTE)
+            {
+               el = new Note((char) tag);
+               nts++;
+            }
+            else
+            if (tag == BARLINE)
+            {
+               el = new Barline();
+            }
+            else
+            {
+               checkNesting(top);
+               Container co = tag == VOICE ? new Voice() : tag == BAR ? new Bar() : new Line();
+               stack[top].add(co);
+               els++;
+               top++;
+               if (top == stack.length)
+               {
+                  stack = Arrays.copyOf(stack, 2 * top);
+                  tags  = Arrays.copyOf(tags,  2 * top);
+               }
+               stack[top] = co;
+               tags[top]  = tag;
+               continue;
+            }
+            stack[top].add(el);
+            els++;
+         }
+         checkCounts(els, nts);
+         return (Score) stack[0];
+      }
+
+      // the same walk as read(), each open container with its last child
+      public FlatScore readFlat(ByteBuffer buf) throws ParseException
+      {
+         readHeader(buf);
+
+         FlatScore fs   = new FlatScore(elements + 1);
+         int[]     co   = new int[16];
+         int[]     prev = new int[16];
+         byte[]    tags = new byte[16];
+         int       top  = 0;
+         co[0]   = fs.add(FlatScore.SCORE, -1, -1, ' ');
+         prev[0] = -1;
+         tags[0] = END;
+         int nts = 0;
+         while (top >= 0)
+         {
+            if (!buf.hasRemaining())
+            {
+               throw new ParseException("binary score ends too soon");
+            }
+            byte tag = buf.get();
+            if (tag == END)
+            {
+               top--;
+               continue;
+            }
+            if (!allowed(tags[top], tag))
+            {
+               throw new ParseException("binary score has tag " + tag + " in tag " + tags[top]);
+            }
+
+            if (tag >= NOTE)
+            {
+               prev[top] = fs.add(FlatScore.NOTE, co[top], prev[top], (char) tag);
+               nts++;
+            }
+            else
+            if (tag == BARLINE)
+            {
+               prev[top] = fs.add(FlatScore.BARLINE, co[top], prev[top], ' ');
+            }
+            else
+            {
+               checkNesting(top);
+               byte k = tag == VOICE ? FlatScore.VOICE : tag == BAR ? FlatScore.BAR : FlatScore.LINE;
+               int  el = fs.add(k, co[top], prev[top], ' ');
+               prev[top] = el;
+               top++;
+               if (top == co.length)
+               {
+                  co   = Arrays.copyOf(co,   2 * top);
+                  prev = Arrays.copyOf(prev, 2 * top);
+                  tags = Arrays.copyOf(tags, 2 * top);
+               }
+               co[top]   = el;
+               prev[top] = -1;
+               tags[top] = tag;
+            }
+         }
+         checkCounts(fs.size() - 1, nts);
+         return fs;
+      }
+
+      // the score, a voice and a bar are below the lines,
+      // top is the stack index of the new container's parent
+      static private void checkNesting(int top) throws ParseException
+      {
+         if (top - 2 >= Parser.maxnesting)
+         {
+            throw new ParseException("binary score has lines nested deeper than " + Parser.maxnesting);
+         }
+      }
+
+      // what the Parser allows: voices in the score, bars and barlines
+      // in a voice, notes and lines in a bar or line
+      static private boolean allowed(byte parent, byte tag)
+      {
+         switch (parent)
+         {
+            case END:   return tag == VOICE;
+            case VOICE: return tag == BAR || tag == BARLINE;
+            case BAR:
+            case LINE:  return tag >= NOTE || tag == LINE;
+            default:    return false;
+         }
+      }
+   }
+
+   // generates c notation text for tests and benchmarks
+   static public class Generator
+   {
+      // a bar with a line nesting of depth levels: c(c(cc))
+      static public String bar(int depth)
+      {
+         StringBuilder sb = new StringBuilder();
+         for (int i=0; i < depth; i++)
+         {
+            sb.append("c(");
+         }
+         sb.append("cc");
+         for (int i=0; i < depth; i++)
+         {
+            sb.append(')');
+         }
+         return sb.toString();
+      }
+
+      static public String voice(int bars, int depth)
+      {
+         String bar = bar(depth);
+         StringBuilder sb = new StringBuilder();
+         sb.append("\\voice{|");
+         for (int i=0; i < bars; i++)
+         {
+            sb.append(bar);
+            sb.append('|');
+         }
+         sb.append('}');
+         return sb.toString();
+      }
+
+      static public String score(int voices, int bars, int depth)
+      {
+         String voice = voice(bars, depth);
+         StringBuilder sb = new StringBuilder();
+         sb.append("\\score{");
+         for (int i=0; i < voices; i++)
+         {
+            sb.append(voice);
+         }
+         sb.append('}');
+         return sb.toString();
+      }
+   }
+
+// ----------------- batch -----------------------   
+
+   static public class Options
+   {
+      @Parameter(description = "input .cn or .cnb files or directories")
+      public List<String> inputs = new ArrayList<String>();
+
+      @Parameter(names = { "-o", "--output" }, description = "output directory for the .svg files")
+      public String outdir = ".";
+
+      @Parameter(names = { "-j", "--threads" }, description = "number of render threads")
+      public int threads = Runtime.getRuntime().availableProcessors();
+
+      @Parameter(names = "--native", description = "write the SVG with the streaming SVGWriter instead of SVGGraphics2D")
+      public boolean nativesvg = false;
+
+      @Parameter(names = "--stream", description = "render column by column with bounded memory, for very large scores")
+      public boolean stream = false;
+
+      @Parameter(names = "--tile", description = "split each score into tiles of at most this many pixels wide")
+      public int tile = 0;
+
+      @Parameter(names = "--png", description = "write the tiles as PNG instead of SVG")
+      public boolean png = false;
+
+      @Parameter(names = "--cache", description = "keep rendered SVG in this directory and reuse it")
+      public String cachedir = null;
+
+      @Parameter(names = "--cache-mb", description = "size of the in-memory render cache in MB, 64 with --cache")
+      public Integer cachemb = null;
+
+      @Parameter(names = "--share", description = "lay out repeated bars and lines only once")
+      public boolean share = false;
+
+      @Parameter(names = "--layout-threads", description = "lay out the voices of a score on this many threads")
+      public int layoutthreads = 0;
+
+      @Parameter(names = "--binary", description = "write each input as a pre-parsed .cnb file instead of SVG")
+      public boolean binary = false;
+
+      @Parameter(names = "--ptsize", description = "font size in pt")
+      public int ptsize = Config.ptsize;
+
+      @Parameter(names = "--border", description = "draw the bounds of every element")
+      public boolean border = false;
+
+      @Parameter(names = "--preview", description = "show the first input in the terminal instead of writing SVG")
+      public boolean preview = false;
+
+      @Parameter(names = "--serve", description = "render C-notation posted to this localhost port, 0 picks one")
+      public Integer serve = null;
+
+      @Parameter(names = "--trace", description = "trace level: off, tree or debug")
+      public String trace = null;
+
+      @Parameter(names = "--parsebench", description = "run the parser benchmark")
+      public boolean parsebench = false;
+
+      @Parameter(names = "--svgbench", description = "compare SVGGraphics2D and SVGWriter output")
+      public boolean svgbench = false;
+
+      @Parameter(names = "--memorybench", description = "compare the heap used by the Score tree and the FlatScore")
+      public boolean memorybench = false;
+
+      @Parameter(names = { "-h", "--help" }, help = true, description = "show this help")
+      public boolean help = false;
+   }
+
+   // Renders .cn files to .svg files without a display,
+   // one file per task on a fixed thread pool.
+   static public class Batch
+   {
+      private final File       outdir;
+      private final int        threads;
+      private final boolean    nativesvg;
+      private final boolean    stream;
+      private int              tilew  = 0;       // 0: one file per score
+      private boolean          png    = false;
+      private ExecutorService  tilepool;
+      private RenderCache      cache  = null;
+      private boolean          share  = false;
+      private boolean          binary = false;   // write .cnb instead of .svg
+      private RenderConfig     rc     = RenderConfig.DEFAULT;
+      private ForkJoinPool     layoutpool = null;   // voices laid out in parallel
+      private final AtomicLong done   = new AtomicLong();
+      private final AtomicLong failed = new AtomicLong();
+      private final AtomicLong notes  = new AtomicLong();
+
+      public Batch(File od, int th, boolean ns)
+      {
+         this(od, th, ns, false);
+      }
+
+      public Batch(File od, int th, boolean ns, boolean st)
+      {
+         outdir    = od;
+         threads   = Math.max(1, th);
+         nativesvg = ns;
+         stream    = st;
+      }
+
+      // writes each score as tiles of at most w wide, as PNG or SVG
+      public void setTiles(int w, boolean pn)
+      {
+         tilew = w;
+         png   = pn;
+      }
+
+      public void setCache(RenderCache rc)
+      {
+         cache = rc;
+      }
+
+      public void setConfig(RenderConfig c)
+      {
+         rc = c;
+      }
+
+      // lay out the voices of each score in parallel on pool
+      public void setLayoutPool(ForkJoinPool pool)
+      {
+         layoutpool = pool;
+      }
+
+      // write each score as a BinaryScore instead of SVG
+      public void setBinary(boolean bi)
+      {
+         binary = bi;
+      }
+
+      // parse with shared bars and lines, see Parser.setShare()
+      public void setShare(boolean sh)
+      {
+         share = sh;
+      }
+
+      // A file to render with the name of its output: the path below
+      // the directory given as input, without the extension.
+      static public class Input
+      {
+         private final File   file;
+         private final String name;
+
+         public Input(File f, String na)
+         {
+            file = f;
+            name = na;
+         }
+
+         public File getFile()
+         {
+            return file;
+         }
+
+         public String getName()
+         {
+            return name;
+         }
+
+         @Override
+         public String toString()
+         {
+            return file.toString();
+         }
+      }
+
+      // expand directories to the .cn and .cnb files they contain
+      static public List<Input> collect(List<String> inputs)
+      {
+         List<Input> files = new ArrayList<Input>();
+         for (String name: inputs)
+         {
+            collect(new File(name), "", files);
+         }
+         return files;
+      }
+
+      // dir is the path of f below the input directory
+      static private void collect(File f, String dir, List<Input> files)
+      {
+         if (f.isDirectory())
+         {
+            File[] list = f.listFiles();
+            if (list != null)
+            {
+               Arrays.sort(list);
+               for (File ff: list)
+               {
+                  if (ff.isDirectory())
+                  {
+                     collect(ff, dir + ff.getName() + "/", files);
+                  }
+                  else
+                  if (ff.getName().endsWith(".cn") || ff.getName().endsWith(".cnb"))
+                  {
+                     collect(ff, dir, files);
+                  }
+               }
+            }
          }
          else
-         if (text.startsWith("\\voice"))
          {
-            text = text.substring(6);
+            files.add(new Input(f, dir + baseName(f)));
+         }
+      }
+
+      static public String baseName(File in)
+      {
+         String name = in.getName();
+         if (name.endsWith(".cn"))
+         {
+            name = name.substring(0, name.length() - 3);
+         }
+         else
+         if (name.endsWith(".cnb"))
+         {
+            name = name.substring(0, name.length() - 4);
+         }
+         return name;
+      }
+
+      // the output of in with extension ext, its directory is made
+      private File outputFile(Input in, String ext)
+      {
+         File f = new File(outdir, in.getName() + ext);
+         f.getParentFile().mkdirs();
+         return f;
+      }
+
+      // parse, lay out and write one file, returns the number of notes
+      public int render(Input input) throws IOException, ParseException
+      {
+         File in = input.getFile();
+         if (in.getName().endsWith(".cnb"))
+         {
+            // already parsed, no text to stream or cache
+            BinaryScore bs = new BinaryScore();
+            Score sc = bs.read(in);
+            if (binary)
+            {
+               BinaryScore.write(sc, outputFile(input, ".cnb"));
+            }
+            else
+            {
+               write(input, sc);
+            }
+            return bs.getNoteCount();
+         }
+
+         if (stream && !binary)
+         {
+            try (Writer writer = Files.newBufferedWriter(outputFile(input, ".svg").toPath(), StandardCharsets.UTF_8))
+            {
+               return StreamRenderer.render(in, writer, rc);
+            }
+         }
+
+         String text = new String(Files.readAllBytes(in.toPath()), StandardCharsets.UTF_8).trim();
+
+         Parser parser = new Parser();
+         if (cache != null && tilew <= 0 && !binary)
+         {
+            // a hit has no parse, so its notes are not counted
+            String key = RenderCache.key(text, nativesvg, rc);
+            byte[] svg = cache.get(key);
+            if (svg == null)
+            {
+               parser.setShare(share);
+               Score sc = parser.parse(RenderCache.normalise(text));
+               sc.layout(Score.svgfrc, rc, layoutpool);
+               svg = RenderCache.svg(sc, nativesvg, rc);
+               cache.put(key, svg);
+            }
+            Files.write(outputFile(input, ".svg").toPath(), svg);
+            return parser.getNoteCount();
+         }
+
+         if (binary)
+         {
+            BinaryScore.write(parser.parse(text), outputFile(input, ".cnb"));
+            return parser.getNoteCount();
+         }
+         parser.setShare(share);
+         write(input, parser.parse(text));
+         return parser.getNoteCount();
+      }
+
+      // lays out and writes the score of in
+      private void write(Input in, Score sc) throws IOException
+      {
+         sc.layout(Score.svgfrc, rc, layoutpool);
+         if (tilew > 0)
+         {
+            // the tiles and their index in the directory of the output
+            File f = outputFile(in, "");
+            new TileRenderer(sc, tilew, png).write(f.getParentFile(), f.getName(), tilepool);
+         }
+         else
+         if (nativesvg)
+         {
+            try (Writer writer = Files.newBufferedWriter(outputFile(in, ".svg").toPath(), StandardCharsets.UTF_8))
+            {
+               sc.writeSVG(writer, rc);
+            }
          }
          else
-         if (text.length() > 0)
          {
-            text = text.substring(1);
+            String svg = sc.toSVG(rc);
+            try (Writer writer = Files.newBufferedWriter(outputFile(in, ".svg").toPath(), StandardCharsets.UTF_8))
+            {
+               writer.write(svg);
+            }
+         }
+      }
+
+      // Returns the number of files that failed. Two inputs with the
+      // same output, as x.cn and x.cnb in one directory, fail the batch
+      // before anything is written.
+      public long run(List<Input> files) throws IOException, InterruptedException
+      {
+         Map<String, Input> names = new HashMap<String, Input>();
+         for (Input in: files)
+         {
+            Input other = names.put(in.getName(), in);
+            if (other != null)
+            {
+               throw new IOException(other + " and " + in + " both write " + in.getName() + " in " + outdir);
+            }
+         }
+         outdir.mkdirs();
+
+         long t0 = System.nanoTime();
+         ExecutorService pool = Executors.newFixedThreadPool(threads);
+         if (tilew > 0)
+         {
+            // the file tasks wait for their tiles, so those need threads of their own
+            tilepool = Executors.newFixedThreadPool(threads);
+         }
+         for (final Input in: files)
+         {
+            pool.execute(() ->
+            {
+               try
+               {
+                  notes.addAndGet(render(in));
+                  done.incrementAndGet();
+               }
+               catch (Throwable e)
+               {
+                  // also errors such as a stack overflow, they fail this file only
+                  failed.incrementAndGet();
+                  System.err.println(in + ": " + e);
+               }
+            });
+         }
+         pool.shutdown();
+         pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+         if (tilepool != null)
+         {
+            tilepool.shutdown();
+         }
+         double secs = (System.nanoTime() - t0) / 1e9;
+
+         System.out.println(String.format("%d files (%d failed), %d notes in %.3f s on %d threads: %.1f files/s, %.0f notes/s",
+                                          done.get(), failed.get(), notes.get(), secs, threads,
+                                          done.get() / secs, notes.get() / secs));
+         if (cache != null)
+         {
+            System.out.println(cache);
+         }
+         return failed.get();
+      }
+   }
+
+   // The latencies of the last n requests, for percentiles.
+   static public class Latencies
+   {
+      private final long[] ring;     // in ns
+      private long         count = 0;
+
+      public Latencies(int n)
+      {
+         ring = new long[n];
+      }
+
+      synchronized public void add(long ns)
+      {
+         ring[(int) (count % ring.length)] = ns;
+         count++;
+      }
+
+      synchronized public long getCount()
+      {
+         return count;
+      }
+
+      // the percentiles p (0 .. 100) in ns, 0 while there are none
+      public long[] percentiles(double... p)
+      {
+         long[] sorted;
+         synchronized (this)
+         {
+            sorted = Arrays.copyOf(ring, (int) Math.min(count, ring.length));
          }
-         else
+         Arrays.sort(sorted);
+
+         long[] res = new long[p.length];
+         for (int i=0; i < p.length; i++)
          {
-            throw new ParseException("at next");
+            if (sorted.length > 0)
+            {
+               int ix = (int) Math.ceil(p[i] / 100.0 * sorted.length) - 1;
+               res[i] = sorted[Math.max(0, Math.min(sorted.length - 1, ix))];
+            }
          }
-      }
-      
-      public String toString()
-      {
-         return text;
+         return res;
       }
    }
-   
-   static public class Parser
+
+   // Renders C-notation posted over HTTP to SVG, so the JVM, the fonts
+   // and the glyph metrics stay warm between snippets.
+   //
+   //   POST /render?ptsize=..&border=..  body: C-notation, reply: SVG
+   //   GET  /stats                       count and latency percentiles
+   static public class RenderServer
    {
-      public SElement parse_bar2(HContainer co, ParseText text) throws ParseException
+      static public final int maxbody = 16 * 1024 * 1024;
+
+      private final RenderConfig rc;
+      private final boolean      nativesvg;
+      private final RenderCache  cache;   // null if none
+      private final int          threads;
+      private final Latencies    latencies = new Latencies(8192);
+      private final AtomicLong   failed    = new AtomicLong();
+      private HttpServer         server;
+      private ExecutorService    executor;
+
+      // th requests are rendered at the same time, rendering keeps a
+      // thread busy so more requests wait in the queue of the pool
+      public RenderServer(RenderConfig c, boolean ns, RenderCache ca, int th)
+      {
+         rc        = c;
+         nativesvg = ns;
+         cache     = ca;
+         threads   = Math.max(1, th);
+      }
+
+      public int getThreads()
+      {
+         return threads;
+      }
+
+      // listens on localhost, port 0 picks a free port
+      public void start(int port) throws IOException
       {
-         System.out.println("Parse.parse_bar2() " + text);
-         if (!text.empty())
+         // load the fonts, glyph metrics and classes before the first request
+         try
          {
-            if (text.get() == '(')
-            {
-               Line line = new Line();
-               co.add(line);
-               text.next();
-               parse_bar2(line, text);
-               if (!text.empty())
-               {
-                  if (text.get() == ')')
-                  {
-                     text.next();
-                     parse_bar2(co, text);
-                  }
-               }
-               else
-               {
-                  throw new ParseException("at ) expected");
-               }
-            }
-            else
-            if (text.get() == 'c')
-            {
-               while (!text.empty() && text.get() == 'c')
-               {
-                  Note nt = new Note(text.get());
-                  co.add(nt);
-                  text.next();
-                  parse_bar2(co, text);
-               }
-            }
+            new Parser().parse(Generator.score(2, 4, 2)).toSVG(rc);
          }
-         else
+         catch (ParseException e)
          {
-            //throw new ParseException();
+            throw new IllegalStateException(e);
          }
-         return co;
+
+         // The handlers run on the thread of the server, a render is
+         // handed to the pool. /stats is answered right away, it does
+         // not wait behind long renders in the queue of the pool.
+         executor = Executors.newFixedThreadPool(threads);
+         server   = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+         server.createContext("/render", ex -> executor.execute(() -> render(ex)));
+         server.createContext("/stats",  this::stats);
+         server.start();
       }
 
-      public SElement parse_bar(ParseText text) throws ParseException
+      public int getPort()
       {
-         System.out.println("Parse.parse_bar() " + text);
-         Bar bar = new Bar();
-         parse_bar2(bar, text);
-         return bar;
+         return server.getAddress().getPort();
       }
 
-      public SElement parse_voice2(HContainer co, ParseText text) throws ParseException
+      public void stop()
+      {
+         server.stop(0);
+         executor.shutdown();
+      }
+
+      public Latencies getLatencies()
+      {
+         return latencies;
+      }
+
+      private void render(HttpExchange ex)
       {
-         System.out.println("Parse.parse_voice2() " + text);
-         if (!text.empty())
+         long t0 = System.nanoTime();
+         try
          {
-            if (text.get() == '}')
+            if (!"POST".equals(ex.getRequestMethod()))
             {
-               return co;
+               ex.getResponseHeaders().set("Allow", "POST");
+               reply(ex, 405, "text/plain", "use POST\n");
+               return;
             }
-            else
-            if (text.get() == '|')
+            byte[] body = ex.getRequestBody().readNBytes(maxbody + 1);
+            if (body.length > maxbody)
             {
-               Barline bline = new Barline();
-               co.add(bline);
-               text.next();
-               parse_voice2(co, text);
+               reply(ex, 413, "text/plain", "more than " + maxbody + " bytes\n");
+               return;
             }
-            else
+
+            RenderConfig c = config(ex.getRequestURI().getRawQuery());
+            if (c == null)
             {
-               SElement el = parse_bar(text);
-               co.add(el);
-               parse_voice2(co, text);
+               reply(ex, 400, "text/plain", "bad query " + ex.getRequestURI().getRawQuery() + "\n");
+               return;
             }
+
+            String text = new String(body, StandardCharsets.UTF_8).trim();
+            byte[] svg;
+            try
+            {
+               svg = svg(text, c);
+            }
+            catch (ParseException e)
+            {
+               reply(ex, 400, "text/plain", e + "\n");
+               return;
+            }
+            reply(ex, 200, "image/svg+xml", svg);
          }
-         return co;
-      }
-      
-      public Voice parse_voice(ParseText text) throws ParseException
-      {
-         System.out.println("Parse.parse_voice() " + text);
-         if (text.startsWith("\\voice"))
+         catch (Throwable e)
          {
-            text.next();
-            if (text.get() == '{')
+            // also errors, the client still gets an answer
+            failed.incrementAndGet();
+            System.err.println("render: " + e);
+            if (ex.getResponseCode() < 0)
             {
-               text.next();
-
-               Voice voice = new Voice();
-               parse_voice2(voice, text);
-               if (text.get() == '}')
+               try
                {
-                  text.next();
-                  return voice;
+                  reply(ex, 500, "text/plain", "render failed\n");
                }
-               else
+               catch (IOException e2)
                {
-                  throw new ParseException("at } expected");
+                  // the client is gone
                }
             }
-            else
-            {
-               throw new ParseException("at { expected");
-            }
          }
-         else
+         finally
          {
-            throw new ParseException("at \\voice expected");
+            latencies.add(System.nanoTime() - t0);
+            ex.close();
          }
-         //return null;
       }
-      
-      public Score parse_score2(Score sco, ParseText text) throws ParseException
+
+      private byte[] svg(String text, RenderConfig c) throws ParseException
       {
-         System.out.println("Parse.parse_score2() " + text);
-         if (!text.empty())
+         if (cache != null)
          {
-            if (text.get() == '}')
-            {
-               return sco;
-            }
-            else
-            if (text.startsWith("\\voice"))
-            {
-               Voice voi = parse_voice(text);
-               sco.add(voi);
-               parse_score2(sco, text);
-            }
+            return cache.render(text, nativesvg, c);
          }
-         return sco;
+         return RenderCache.svg(new Parser().parse(text), nativesvg, c);
       }
 
-      public Score parse_score(ParseText text) throws ParseException
+      // the server config changed by ptsize=n and border=true|false, null if bad
+      private RenderConfig config(String query)
       {
-         System.out.println("Parse.parse_score() " + text);
-         if (text.startsWith("\\score"))
+         RenderConfig c = rc;
+         if (query == null)
          {
-            text.next();
-            if (text.get() == '{')
+            return c;
+         }
+         for (String kv: query.split("&"))
+         {
+            int eq = kv.indexOf('=');
+            String k = eq < 0 ? kv : kv.substring(0, eq);
+            String v = eq < 0 ? "" : kv.substring(eq + 1);
+            if (k.equals("ptsize"))
             {
-               text.next();
-               
-               Score sc = new Score();
-
-               parse_score2(sc, text);
-               
-               if (text.get() == '}')
+               try
                {
-                  text.next();
-                  
-                  return sc;
+                  int pt = Integer.parseInt(v);
+                  if (pt < 1 || pt > 1000)
+                  {
+                     return null;
+                  }
+                  c = c.withSize(pt);
                }
-               else
+               catch (NumberFormatException e)
                {
-                  throw new ParseException("at } expected");
+                  return null;
                }
             }
             else
+            if (k.equals("border"))
             {
-               throw new ParseException("at { expected");
+               if (!v.equals("true") && !v.equals("false"))
+               {
+                  return null;
+               }
+               c = c.withBorder(v.equals("true"));
+            }
+            else
+            if (!k.isEmpty())
+            {
+               return null;
             }
          }
-         else
+         return c;
+      }
+
+      private void stats(HttpExchange ex) throws IOException
+      {
+         try
          {
-            throw new ParseException("at \\score expected");
+            reply(ex, 200, "application/json", statsJSON());
+         }
+         finally
+         {
+            ex.close();
          }
       }
 
-      public Score parse(String text) throws ParseException
+      public String statsJSON()
       {
-         System.out.println("Parse.parse() " + text);
-         //return new Score(parse_voice(new ParseText(text)));
-         return parse_score(new ParseText(text));
+         long[] pc = latencies.percentiles(50, 90, 99, 100);
+         return String.format(Locale.ROOT,
+                              "{ \"requests\": %d, \"failed\": %d, \"p50_ms\": %.3f, \"p90_ms\": %.3f, \"p99_ms\": %.3f, \"max_ms\": %.3f }\n",
+                              latencies.getCount(), failed.get(), pc[0] / 1e6, pc[1] / 1e6, pc[2] / 1e6, pc[3] / 1e6);
+      }
+
+      static private void reply(HttpExchange ex, int status, String type, String body) throws IOException
+      {
+         reply(ex, status, type + "; charset=utf-8", body.getBytes(StandardCharsets.UTF_8));
+      }
+
+      static private void reply(HttpExchange ex, int status, String type, byte[] body) throws IOException
+      {
+         ex.getResponseHeaders().set("Content-Type", type);
+         ex.sendResponseHeaders(status, body.length);
+         try (OutputStream out = ex.getResponseBody())
+         {
+            out.write(body);
+         }
       }
    }
 
@@ -1442,7 +6425,10 @@ public class CNotation2SVG
       try
       {
          Score sc = parser.parse(te);
-         System.out.println("parse result " + sc);
+         if (Trace.on(Trace.DEBUG))
+         {
+            Trace.println(0, "parse result " + sc);
+         }
          //sc.show(0);
          return sc;
       }
@@ -1461,25 +6447,14 @@ public class CNotation2SVG
     	String cccc = "\\score{\\voice{|c|}\\voice{|(cc)|}\\voice{|((cc)(cc))|}}";
     	Score sc = makeScore(cccc);
     	
+      // lay out once, the panel and the SVG export share the layout
+      String svgElement = sc.toSVG();
+    	
     	CNotationPanel panel = new CNotationPanel(sc);
-    	frame.getContentPane().add(panel);
+    	frame.getContentPane().add(new JScrollPane(panel));
     	frame.setSize(800, 600);
     	frame.setVisible(true);
     	frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-    	frame.setResizable(false);		
-
-      // export to SVG
-    	Score sc2 = makeScore(cccc);
-      SVGGraphics2D g2 = new SVGGraphics2D(600, 400);
-    	sc2.clearLok();
-      sc2.draw(g2);
-      
-      // only now w and h are set
-      SVGGraphics2D gg2 = new SVGGraphics2D(sc2.getW(), sc2.getH());
-    	Score sc3 = makeScore(cccc);
-      sc3.draw(gg2);
-      String svgElement = gg2.getSVGElement();
-      //System.out.println(svgElement);
 
       try
       {
@@ -1502,8 +6477,268 @@ public class CNotation2SVG
    }
    
    
+   public static void parsebench()
+   {
+      int bars = 100;
+      int[] sizes = { 10000, 100000, 1000000 };
+      for (int size: sizes)
+      {
+         String voice = Generator.voice(bars, 1);
+         String text  = Generator.score(Math.max(1, size / voice.length()), bars, 1);
+
+         Parser parser = new Parser();
+         long best = Long.MAX_VALUE;
+         try
+         {
+            for (int i=0; i < 10; i++)
+            {
+               long t0 = System.nanoTime();
+               parser.parse(text);
+               best = Math.min(best, System.nanoTime() - t0);
+            }
+         }
+         catch (ParseException e)
+         {
+            System.out.println("exception " + e);
+            break;
+         }
+         System.out.println("parse " + text.length() + " chars: " + (best / 1000) + " us, "
+                     + (text.length() * 1000L / Math.max(1, best)) + " chars/us");
+      }
+   }
+   
+   
+   // output size and time of SVGGraphics2D against the SVGWriter
+   public static void svgbench()
+   {
+      int[][] sizes = { { 4, 100, 2 }, { 8, 1000, 2 }, { 16, 10000, 2 } };
+      for (int[] si: sizes)
+      {
+         try
+         {
+            Score sc = new Parser().parse(Generator.score(si[0], si[1], si[2]));
+            sc.layout(new SVGGraphics2D(1, 1).getFontRenderContext());
+
+            long best1 = Long.MAX_VALUE;
+            long best2 = Long.MAX_VALUE;
+            long size1 = 0;
+            long size2 = 0;
+            for (int i=0; i < 5; i++)
+            {
+               long t0 = System.nanoTime();
+               size1 = sc.toSVG().length();
+               best1 = Math.min(best1, System.nanoTime() - t0);
+
+               StringWriter sw = new StringWriter();
+               t0 = System.nanoTime();
+               sc.writeSVG(sw);
+               best2 = Math.min(best2, System.nanoTime() - t0);
+               size2 = sw.getBuffer().length();
+            }
+            System.out.println(String.format("%d voices x %d bars: SVGGraphics2D %d chars %.1f ms, SVGWriter %d chars %.1f ms",
+                                             si[0], si[1], size1, best1 / 1e6, size2, best2 / 1e6));
+         }
+         catch (Exception e)
+         {
+            System.out.println("exception " + e);
+         }
+      }
+   }
+   
+   static private long usedMemory()
+   {
+      Runtime rt = Runtime.getRuntime();
+      for (int i=0; i < 3; i++)
+      {
+         System.gc();
+      }
+      return rt.totalMemory() - rt.freeMemory();
+   }
+
+   // heap used by a laid out Score tree against the same FlatScore
+   public static void memorybench()
+   {
+      int[] sizes = { 1000, 10000, 50000 };
+      FontRenderContext frc = new SVGGraphics2D(1, 1).getFontRenderContext();
+      for (int bars: sizes)
+      {
+         try
+         {
+            String text = Generator.score(8, bars, 2);
+
+            long m0 = usedMemory();
+            Parser parser = new Parser();
+            Score sc = parser.parse(text);
+            sc.layout(frc);
+            long m1 = usedMemory();
+            int w1 = sc.getW();
+            sc = null;
+
+            long m2 = usedMemory();
+            FlatScore fs = new FlatParser().parse(text);
+            fs.layout(frc);
+            long m3 = usedMemory();
+            int w2 = fs.getW();
+            int n  = fs.size();
+            fs = null;
+
+            int notes = parser.getNoteCount();
+            System.out.println(String.format("%d notes, %d elements: tree %.1f MB (%d bytes/note), flat %.1f MB (%d bytes/note)%s",
+                                             notes, n, (m1 - m0) / 1e6, (m1 - m0) / notes, (m3 - m2) / 1e6, (m3 - m2) / notes,
+                                             w1 == w2 ? "" : ", width differs"));
+         }
+         catch (Exception e)
+         {
+            System.out.println("exception " + e);
+         }
+      }
+   }
+   
    public static void main(String[] args)
    {
+      Options opts = new Options();
+      JCommander jc = new JCommander(opts);
+      jc.setProgramName("cnotation2svg");
+      try
+      {
+         jc.parse(args);
+      }
+      catch (ParameterException e)
+      {
+         System.err.println(e.getMessage());
+         jc.usage();
+         System.exit(2);
+      }
+
+      if (opts.help)
+      {
+         jc.usage();
+         return;
+      }
+      if (opts.trace != null)
+      {
+         Trace.setLevel(Trace.parseLevel(opts.trace));
+      }
+      if (opts.parsebench)
+      {
+         parsebench();
+         return;
+      }
+      if (opts.svgbench)
+      {
+         System.setProperty("java.awt.headless", "true");
+         svgbench();
+         return;
+      }
+      if (opts.memorybench)
+      {
+         System.setProperty("java.awt.headless", "true");
+         memorybench();
+         return;
+      }
+      // before the config loads its font
+      if (opts.serve != null || !opts.inputs.isEmpty())
+      {
+         System.setProperty("java.awt.headless", "true");
+      }
+      RenderConfig rc = new RenderConfig(Config.fontname, opts.ptsize, opts.border || Config.withborder);
+      RenderCache cache = null;
+      if (opts.cachedir != null || opts.cachemb != null)
+      {
+         long mb = opts.cachemb != null ? opts.cachemb : 64;
+         cache = new RenderCache(mb * 1024L * 1024L, opts.cachedir == null ? null : new File(opts.cachedir));
+      }
+
+      if (opts.serve != null)
+      {
+         RenderServer server = new RenderServer(rc, opts.nativesvg, cache, opts.threads);
+         try
+         {
+            server.start(opts.serve);
+         }
+         catch (IOException e)
+         {
+            System.err.println("cannot listen on port " + opts.serve + ": " + e);
+            System.exit(1);
+         }
+         System.out.println("listening on http://localhost:" + server.getPort() + "/render with "
+                            + server.getThreads() + " render threads");
+         // the server threads keep running
+         return;
+      }
+
+      if (opts.preview && !opts.inputs.isEmpty())
+      {
+         try
+         {
+            List<Batch.Input> inputs = Batch.collect(opts.inputs);
+            if (inputs.isEmpty())
+            {
+               System.err.println("no .cn or .cnb files in " + opts.inputs);
+               System.exit(1);
+            }
+            File  in = inputs.get(0).getFile();
+            Score sc;
+            if (in.getName().endsWith(".cnb"))
+            {
+               sc = new BinaryScore().read(in);
+            }
+            else
+            {
+               sc = new Parser().parse(new String(Files.readAllBytes(in.toPath()), StandardCharsets.UTF_8).trim());
+            }
+            sc.layout(Score.svgfrc, rc);
+            TerminalPreview tp = new TerminalPreview(sc);
+            if (System.console() == null)
+            {
+               // not a terminal, print the whole score
+               System.out.print(tp.text());
+            }
+            else
+            {
+               tp.show();
+            }
+         }
+         catch (IOException | ParseException e)
+         {
+            System.err.println("exception " + e);
+            System.exit(1);
+         }
+         return;
+      }
+
+      if (!opts.inputs.isEmpty())
+      {
+         Batch batch = new Batch(new File(opts.outdir), opts.threads, opts.nativesvg, opts.stream);
+         batch.setTiles(opts.tile, opts.png);
+         batch.setShare(opts.share);
+         batch.setBinary(opts.binary);
+         if (opts.layoutthreads > 1)
+         {
+            batch.setLayoutPool(new ForkJoinPool(opts.layoutthreads));
+         }
+         batch.setConfig(rc);
+         if (cache != null)
+         {
+            batch.setCache(cache);
+         }
+         try
+         {
+            long failed = batch.run(Batch.collect(opts.inputs));
+            System.exit(failed == 0 ? 0 : 1);
+         }
+         catch (IOException e)
+         {
+            System.err.println(e.getMessage());
+            System.exit(1);
+         }
+         catch (InterruptedException e)
+         {
+            System.exit(1);
+         }
+         return;
+      }
+
       CNotation2SVG cnotation = new CNotation2SVG();
       
       cnotation.swingdemo();
@@ -0,0 +1,179 @@
+package org.rooi.cnotation2svg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.rooi.cnotation2svg.CNotation2SVG.BinaryScore;
+import org.rooi.cnotation2svg.CNotation2SVG.Generator;
+import org.rooi.cnotation2svg.CNotation2SVG.ParseException;
+import org.rooi.cnotation2svg.CNotation2SVG.Parser;
+import org.rooi.cnotation2svg.CNotation2SVG.Score;
+
+// A score written as a BinaryScore and read back, as a Score or as a
+// FlatScore, draws the same SVG as the parsed text. Bad files are
+// rejected with a ParseException.
+public class BinaryScoreTest
+{
+   static private final String[] texts =
+   {
+      "\\score{\\voice{|c(cc(c)c)|c|(c)(c)|}\\voice{|c|ccc|cc|c|}\\voice{|(((c)))|}}",
+      Generator.score(3, 20, 3),
+      Generator.score(1, 200, 0),
+   };
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   static private byte[] bytes(Score sc) throws IOException
+   {
+      ByteArrayOutputStream bo = new ByteArrayOutputStream();
+      BinaryScore.write(sc, bo);
+      return bo.toByteArray();
+   }
+
+   @Test
+   public void roundTrip() throws Exception
+   {
+      for (String text: texts)
+      {
+         for (boolean share: new boolean[] { false, true })
+         {
+            Parser parser = new Parser();
+            parser.setShare(share);
+            String expected = new Parser().parse(text).toSVG();
+            byte[] b = bytes(parser.parse(text));
+
+            BinaryScore bs = new BinaryScore();
+            assertEquals(expected, bs.read(ByteBuffer.wrap(b)).toSVG());
+            assertEquals(parser.getNoteCount(), bs.getNoteCount());
+            assertEquals(expected, bs.readFlat(ByteBuffer.wrap(b)).toSVG());
+            assertEquals(parser.getNoteCount(), bs.getNoteCount());
+         }
+      }
+   }
+
+   @Test
+   public void roundTripFile() throws Exception
+   {
+      String text = texts[1];
+      String expected = new Parser().parse(text).toSVG();
+      File f = folder.newFile("score.cnb");
+      BinaryScore.write(new Parser().parse(text), f);
+
+      BinaryScore bs = new BinaryScore();
+      assertEquals(expected, bs.read(f).toSVG());
+      assertEquals(expected, bs.readFlat(f).toSVG());
+   }
+
+   // both readers must reject b with a ParseException that contains what
+   static private void rejected(byte[] b, String what)
+   {
+      BinaryScore bs = new BinaryScore();
+      try
+      {
+         bs.read(ByteBuffer.wrap(b));
+         fail("read() took a bad file, " + what + " expected");
+      }
+      catch (ParseException e)
+      {
+         assertTrue(e.toString(), e.toString().contains(what));
+      }
+      try
+      {
+         bs.readFlat(ByteBuffer.wrap(b));
+         fail("readFlat() took a bad file, " + what + " expected");
+      }
+      catch (ParseException e)
+      {
+         assertTrue(e.toString(), e.toString().contains(what));
+      }
+   }
+
+   @Test
+   public void badHeader() throws Exception
+   {
+      byte[] b = bytes(new Parser().parse(texts[0]));
+
+      byte[] magic = b.clone();
+      magic[0] = 'X';
+      rejected(magic, "not a binary score");
+
+      byte[] ver = b.clone();
+      ver[3] = (byte) (BinaryScore.version + 1);
+      rejected(ver, "version");
+
+      // one note more in the header than in the tree
+      byte[] count = b.clone();
+      count[11]++;
+      rejected(count, "the header says");
+   }
+
+   @Test
+   public void truncated() throws Exception
+   {
+      byte[] b = bytes(new Parser().parse(texts[0]));
+      for (int n=0; n < b.length; n++)
+      {
+         rejected(Arrays.copyOf(b, n), "binary score");
+      }
+   }
+
+   @Test
+   public void badTag() throws Exception
+   {
+      byte[] b = bytes(new Parser().parse("\\score{\\voice{|c|}}"));
+      // "CNB" version elements notes VOICE BARLINE BAR 'c' ...
+      assertEquals(BinaryScore.BAR, b[14]);
+      b[14] = 'c';
+      rejected(b, "tag");
+   }
+
+   // a voice with one bar of depth nested lines around one note
+   static private byte[] nested(int depth) throws IOException
+   {
+      ByteArrayOutputStream bo  = new ByteArrayOutputStream();
+      DataOutputStream      out = new DataOutputStream(bo);
+      out.writeBytes("CNB");
+      out.writeByte(BinaryScore.version);
+      out.writeInt(depth + 3);
+      out.writeInt(1);
+      out.writeByte(BinaryScore.VOICE);
+      out.writeByte(BinaryScore.BAR);
+      for (int i=0; i < depth; i++)
+      {
+         out.writeByte(BinaryScore.LINE);
+      }
+      out.writeByte('c');
+      for (int i=0; i < depth + 3; i++)
+      {
+         out.writeByte(BinaryScore.END);
+      }
+      out.flush();
+      return bo.toByteArray();
+   }
+
+   // the same limit as the Parser
+   @Test
+   public void nesting() throws Exception
+   {
+      BinaryScore bs = new BinaryScore();
+      byte[] ok = nested(Parser.maxnesting);
+      bs.read(ByteBuffer.wrap(ok));
+      assertEquals(Parser.maxnesting + 3, bs.getElementCount());
+      bs.readFlat(ByteBuffer.wrap(ok));
+
+      rejected(nested(Parser.maxnesting + 1), "nested deeper");
+   }
+}
@@ -0,0 +1,148 @@
+package org.rooi.cnotation2svg;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import org.rooi.cnotation2svg.CNotation2SVG.Generator;
+import org.rooi.cnotation2svg.CNotation2SVG.HGroup;
+import org.rooi.cnotation2svg.CNotation2SVG.Parser;
+import org.rooi.cnotation2svg.CNotation2SVG.RenderConfig;
+import org.rooi.cnotation2svg.CNotation2SVG.Score;
+
+// Renders on a pool of threads must be byte-for-byte the same
+// as a sequential render.
+public class ConcurrentRenderTest
+{
+   static private final int threads = 8;
+
+   static private String text(int i)
+   {
+      return Generator.score(1 + i % 3, 1 + i % 17, i % 4);
+   }
+
+   // separate scores share only the element counter and the GlyphCache
+   @Test
+   public void separateScores() throws Exception
+   {
+      int n = 10000;
+      String[] expected = new String[n];
+      for (int i=0; i < n; i++)
+      {
+         expected[i] = new Parser().parse(text(i)).toSVG();
+      }
+
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      try
+      {
+         List<Future<String>> results = new ArrayList<Future<String>>();
+         for (int i=0; i < n; i++)
+         {
+            final String text = text(i);
+            results.add(pool.submit(() -> new Parser().parse(text).toSVG()));
+         }
+         for (int i=0; i < n; i++)
+         {
+            assertEquals("score " + i, expected[i], results.get(i).get());
+         }
+      }
+      finally
+      {
+         pool.shutdown();
+      }
+   }
+
+   // one score rendered at two sizes at the same time, each render
+   // has to draw the layout it made itself
+   @Test
+   public void oneScoreTwoSizes() throws Exception
+   {
+      String       text = Generator.score(3, 40, 2);
+      RenderConfig r40  = RenderConfig.DEFAULT.withSize(40);
+      RenderConfig r48  = RenderConfig.DEFAULT.withSize(48);
+      String       s40  = new Parser().parse(text).toSVG(r40);
+      String       s48  = new Parser().parse(text).toSVG(r48);
+      StringWriter w48  = new StringWriter();
+      new Parser().parse(text).writeSVG(w48, r48);
+
+      Score sc = new Parser().parse(text);
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      try
+      {
+         List<Future<String>> results = new ArrayList<Future<String>>();
+         for (int i=0; i < 400; i++)
+         {
+            final int k = i % 3;
+            results.add(pool.submit(() ->
+            {
+               if (k == 0)
+               {
+                  return sc.toSVG(r40);
+               }
+               else
+               if (k == 1)
+               {
+                  return sc.toSVG(r48);
+               }
+               StringWriter sw = new StringWriter();
+               sc.writeSVG(sw, r48);
+               return sw.toString();
+            }));
+         }
+         for (int i=0; i < 400; i++)
+         {
+            String expected = i % 3 == 0 ? s40 : i % 3 == 1 ? s48 : w48.toString();
+            assertEquals("render " + i, expected, results.get(i).get());
+         }
+      }
+      finally
+      {
+         pool.shutdown();
+      }
+   }
+
+   // A layout on a layout pool, voices side by side and long voices
+   // in chunks, must give the same SVG as a layout on one thread,
+   // with and without shared bars.
+   @Test
+   public void layoutPool() throws Exception
+   {
+      int      longbars = HGroup.parallelchunk * 2;  // twice as many elements as that
+      String[] texts    =
+      {
+         Generator.score(1, longbars, 2),
+         Generator.score(3, longbars, 3),
+         Generator.score(4, 40, 2),
+         Generator.score(2, 7, 4),
+      };
+      ForkJoinPool pool = new ForkJoinPool(4);
+      try
+      {
+         RenderConfig par = RenderConfig.DEFAULT.withLayoutPool(pool);
+         for (String text: texts)
+         {
+            for (boolean share: new boolean[] { false, true })
+            {
+               Parser p1 = new Parser();
+               p1.setShare(share);
+               Parser p2 = new Parser();
+               p2.setShare(share);
+               String expected = p1.parse(text).toSVG(RenderConfig.DEFAULT);
+               assertEquals("share " + share, expected, p2.parse(text).toSVG(par));
+            }
+         }
+      }
+      finally
+      {
+         pool.shutdown();
+      }
+   }
+}
@@ -0,0 +1,135 @@
+package org.rooi.cnotation2svg;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+import org.junit.Test;
+
+import org.rooi.cnotation2svg.CNotation2SVG.FlatParser;
+import org.rooi.cnotation2svg.CNotation2SVG.FlatScore;
+import org.rooi.cnotation2svg.CNotation2SVG.GraphicsPainter;
+import org.rooi.cnotation2svg.CNotation2SVG.Parser;
+import org.rooi.cnotation2svg.CNotation2SVG.Score;
+
+// A render that only paints a part of the score must give the same
+// pixels there as a render of the whole score.
+public class DrawTest
+{
+   static
+   {
+      System.setProperty("java.awt.headless", "true");
+   }
+
+   // a narrow voice above a wide one, the bars of the narrow voice
+   // get the width of the columns of the wide one
+   static private String text()
+   {
+      StringBuilder narrow = new StringBuilder("\\voice{");
+      StringBuilder wide   = new StringBuilder("\\voice{");
+      for (int i=0; i < 40; i++)
+      {
+         narrow.append("|c");
+         wide.append("|cccccccccccc");
+      }
+      narrow.append("|}");
+      wide.append("|}");
+      return "\\score{" + narrow + wide + "}";
+   }
+
+   static private BufferedImage image(int w, int h)
+   {
+      BufferedImage im = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+      Graphics2D g = im.createGraphics();
+      g.setColor(Color.WHITE);
+      g.fillRect(0, 0, w, h);
+      g.setColor(Color.BLACK);
+      g.dispose();
+      return im;
+   }
+
+   static private int differ(BufferedImage a, BufferedImage b, int x0, int w, int h)
+   {
+      int bad = 0;
+      for (int y=0; y < h; y++)
+      {
+         for (int x=x0; x < x0 + w; x++)
+         {
+            if (a.getRGB(x, y) != b.getRGB(x, y))
+            {
+               bad++;
+            }
+         }
+      }
+      return bad;
+   }
+
+   @Test
+   public void scoreClip() throws Exception
+   {
+      Score sc = new Parser().parse(text());
+      BufferedImage full = image(1, 1);
+      Graphics2D g = full.createGraphics();
+      sc.layout(g.getFontRenderContext());
+      g.dispose();
+
+      int w  = sc.getW();
+      int h  = sc.getH();
+      int x0 = w - w/4;
+
+      full = image(w, h);
+      g = full.createGraphics();
+      g.setColor(Color.BLACK);
+      sc.draw(new GraphicsPainter(g));
+      g.dispose();
+
+      // the tree walk of draw(Painter) and the index of draw(Graphics)
+      BufferedImage walk = image(w, h);
+      g = walk.createGraphics();
+      g.setColor(Color.BLACK);
+      g.setClip(x0, 0, w - x0, h);
+      sc.draw(new GraphicsPainter(g));
+      g.dispose();
+
+      BufferedImage index = image(w, h);
+      g = index.createGraphics();
+      g.setColor(Color.BLACK);
+      g.setClip(x0, 0, w - x0, h);
+      sc.draw(g);
+      g.dispose();
+
+      assertEquals(0, differ(full, walk,  x0, w - x0, h));
+      assertEquals(0, differ(full, index, x0, w - x0, h));
+   }
+
+   @Test
+   public void flatClip() throws Exception
+   {
+      FlatScore fs = new FlatParser().parse(text());
+      BufferedImage full = image(1, 1);
+      Graphics2D g = full.createGraphics();
+      fs.layout(g.getFontRenderContext());
+      g.dispose();
+
+      int w  = fs.getW();
+      int h  = fs.getH();
+      int x0 = w - w/4;
+
+      full = image(w, h);
+      g = full.createGraphics();
+      g.setColor(Color.BLACK);
+      fs.draw(new GraphicsPainter(g));
+      g.dispose();
+
+      BufferedImage part = image(w, h);
+      g = part.createGraphics();
+      g.setColor(Color.BLACK);
+      g.setClip(x0, 0, w - x0, h);
+      fs.draw(new GraphicsPainter(g));
+      g.dispose();
+
+      assertEquals(0, differ(full, part, x0, w - x0, h));
+   }
+}
@@ -0,0 +1,70 @@
+package org.rooi.cnotation2svg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.awt.font.FontRenderContext;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jfree.graphics2d.svg.SVGGraphics2D;
+import org.junit.Test;
+
+import org.rooi.cnotation2svg.CNotation2SVG.Generator;
+import org.rooi.cnotation2svg.CNotation2SVG.ParseException;
+import org.rooi.cnotation2svg.CNotation2SVG.Parser;
+import org.rooi.cnotation2svg.CNotation2SVG.Score;
+
+// Run with: gradle test
+public class ParserTest
+{
+   // Runs r on a new thread with the default stack size, the thread
+   // that runs the tests can have a larger stack than a worker thread.
+   static private void onDefaultStack(Runnable r) throws Throwable
+   {
+      AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+      Thread th = new Thread(() ->
+      {
+         try
+         {
+            r.run();
+         }
+         catch (Throwable e)
+         {
+            error.set(e);
+         }
+      });
+      th.start();
+      th.join();
+      if (error.get() != null)
+      {
+         throw error.get();
+      }
+   }
+
+   // The stack depth of parse and layout follows the nesting of the
+   // lines, not the length of a voice. Bars of "cc" have no lines.
+   @Test
+   public void millionNoteVoice() throws Throwable
+   {
+      String text = "\\score{" + Generator.voice(500000, 0) + "}";
+      onDefaultStack(() ->
+      {
+         try
+         {
+            Parser parser = new Parser();
+            Score  sc     = parser.parse(text);
+            assertEquals(1000000, parser.getNoteCount());
+
+            FontRenderContext frc = new SVGGraphics2D(1, 1).getFontRenderContext();
+            Rectangle r = sc.layout(frc);
+            assertTrue(r.width > 1000000);
+            assertTrue(r.height > 0);
+         }
+         catch (ParseException e)
+         {
+            throw new AssertionError(e.toString());
+         }
+      });
+   }
+}
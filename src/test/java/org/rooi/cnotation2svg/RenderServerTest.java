@@ -0,0 +1,135 @@
+package org.rooi.cnotation2svg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.rooi.cnotation2svg.CNotation2SVG.RenderConfig;
+import org.rooi.cnotation2svg.CNotation2SVG.RenderServer;
+
+// The render server on a free port of localhost.
+public class RenderServerTest
+{
+   static
+   {
+      System.setProperty("java.awt.headless", "true");
+   }
+
+   static private class Reply
+   {
+      int    status;
+      String type;
+      String body;
+   }
+
+   private RenderServer server;
+
+   @Before
+   public void start() throws IOException
+   {
+      server = new RenderServer(RenderConfig.DEFAULT, true, null, 1);
+      server.start(0);
+   }
+
+   @After
+   public void stop()
+   {
+      server.stop();
+   }
+
+   // body null for a GET
+   private Reply request(String path, String body) throws IOException
+   {
+      URL url = new URL("http://localhost:" + server.getPort() + path);
+      HttpURLConnection con = (HttpURLConnection) url.openConnection();
+      con.setReadTimeout(10000);
+      if (body != null)
+      {
+         con.setRequestMethod("POST");
+         con.setDoOutput(true);
+         try (OutputStream out = con.getOutputStream())
+         {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+         }
+      }
+      Reply r = new Reply();
+      r.status = con.getResponseCode();
+      r.type   = con.getContentType();
+      try (InputStream in = r.status < 400 ? con.getInputStream() : con.getErrorStream())
+      {
+         ByteArrayOutputStream bo = new ByteArrayOutputStream();
+         byte[] buf = new byte[8192];
+         int    n;
+         while (in != null && (n = in.read(buf)) >= 0)
+         {
+            bo.write(buf, 0, n);
+         }
+         r.body = new String(bo.toByteArray(), StandardCharsets.UTF_8);
+      }
+      con.disconnect();
+      return r;
+   }
+
+   @Test
+   public void render() throws Exception
+   {
+      Reply r = request("/render", "\\score{\\voice{|cc|c|}}");
+      assertEquals(200, r.status);
+      assertEquals("image/svg+xml", r.type);
+      assertTrue(r.body, r.body.contains("<svg"));
+
+      r = request("/render?ptsize=30&border=true", "\\score{\\voice{|cc|c|}}");
+      assertEquals(200, r.status);
+
+      assertEquals(400, request("/render", "\\score{\\voice{|x|}}").status);
+      assertEquals(400, request("/render?border=yes", "\\score{\\voice{|c|}}").status);
+      assertEquals(400, request("/render?border", "\\score{\\voice{|c|}}").status);
+      assertEquals(400, request("/render?ptsize=big", "\\score{\\voice{|c|}}").status);
+      assertEquals(400, request("/render?ptsize=0", "\\score{\\voice{|c|}}").status);
+      assertEquals(400, request("/render?size=30", "\\score{\\voice{|c|}}").status);
+      assertEquals(405, request("/render", null).status);
+
+      // the latency of a request is counted after its reply is sent
+      String expected = "\"requests\": 9, \"failed\": 0,";
+      Reply st = request("/stats", null);
+      for (int i=0; i < 100 && !st.body.contains(expected); i++)
+      {
+         Thread.sleep(20);
+         st = request("/stats", null);
+      }
+      assertEquals(200, st.status);
+      assertTrue(st.body, st.body.contains(expected));
+   }
+
+   // /stats is answered while the one render thread waits for the
+   // body of a request that does not come
+   @Test
+   public void statsBesideRenders() throws Exception
+   {
+      try (Socket stalled = new Socket(InetAddress.getLoopbackAddress(), server.getPort()))
+      {
+         OutputStream out = stalled.getOutputStream();
+         out.write(("POST /render HTTP/1.1\r\nHost: localhost\r\nContent-Length: 100\r\n\r\n\\score{")
+                   .getBytes(StandardCharsets.US_ASCII));
+         out.flush();
+         Thread.sleep(200);
+
+         Reply st = request("/stats", null);
+         assertEquals(200, st.status);
+         assertTrue(st.body, st.body.contains("\"requests\": 0,"));
+      }
+   }
+}